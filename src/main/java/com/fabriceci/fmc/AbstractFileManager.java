@@ -3,8 +3,22 @@ package com.fabriceci.fmc;
 import com.fabriceci.fmc.error.ClientErrorMessage;
 import com.fabriceci.fmc.error.FileManagerException;
 import com.fabriceci.fmc.model.*;
+import com.fabriceci.fmc.util.ArchiveCache;
+import com.fabriceci.fmc.util.AtomicFiles;
+import com.fabriceci.fmc.util.BandwidthLimiter;
+import com.fabriceci.fmc.util.BufferPool;
+import com.fabriceci.fmc.util.FileChannelCache;
+import com.fabriceci.fmc.util.FileContentCache;
+import com.fabriceci.fmc.util.FileManagerUtils;
 import com.fabriceci.fmc.util.FileUtils;
+import com.fabriceci.fmc.util.GzipCache;
+import com.fabriceci.fmc.util.HttpUtils;
 import com.fabriceci.fmc.util.StringUtils;
+import com.fabriceci.fmc.util.UploadSessions;
+import com.fabriceci.fmc.util.WorkerPool;
+import com.fabriceci.fmc.util.ZipExtractor;
+import com.fabriceci.fmc.util.ZipIndexCache;
+import com.fabriceci.fmc.util.ZipStreamWriter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.imgscalr.Scalr;
@@ -17,10 +31,14 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.Normalizer;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPOutputStream;
 
 public abstract class AbstractFileManager implements IFileManager {
 
@@ -29,6 +47,8 @@ public abstract class AbstractFileManager implements IFileManager {
     protected final static String LANG_FILE = "filemanager.lang.en.properties";
     private static final Pattern NONLATIN = Pattern.compile("[^\\w-]");
     private static final Pattern WHITESPACE = Pattern.compile("[\\s]");
+    // the configuration applied to the shared subsystems; guarded by the class
+    private static Properties sharedConfig;
     protected final Logger logger = LoggerFactory.getLogger(AbstractFileManager.class);
     protected boolean readOnly = false;
     protected Properties propertiesConfig = new Properties();
@@ -70,6 +90,32 @@ public abstract class AbstractFileManager implements IFileManager {
         }
 
         readOnly = Boolean.parseBoolean(propertiesConfig.getProperty("readOnly"));
+
+        configureShared(propertiesConfig);
+    }
+
+    /**
+     * Configure the subsystems shared by all the instances, only when the configuration changed: a file manager is
+     * usually created for each request.
+     */
+    private static synchronized void configureShared(Properties properties) {
+        if (properties.equals(sharedConfig)) {
+            return;
+        }
+        BufferPool.configure(properties);
+        FileChannelCache.configure(properties);
+        FileContentCache.configure(properties);
+        GzipCache.configure(properties);
+        BandwidthLimiter.configure(properties);
+        WorkerPool.configure(properties);
+        ZipStreamWriter.configure(properties);
+        ArchiveCache.configure(properties);
+        ZipExtractor.configure(properties);
+        ZipIndexCache.configure(properties);
+        UploadSessions.configure(properties);
+        AtomicFiles.configure(properties);
+        sharedConfig = new Properties();
+        sharedConfig.putAll(properties);
     }
 
     public AbstractFileManager() {
@@ -94,9 +140,16 @@ public abstract class AbstractFileManager implements IFileManager {
         Object responseData = null;
         response.setStatus(200);
 
+        // File transfers share the configured bandwidth.
+        ThrottledResponse throttledResponse = null;
+        if (BandwidthLimiter.isEnabled() && ("download".equals(mode) || "getimage".equals(mode) || "readfile".equals(mode))) {
+            throttledResponse = new ThrottledResponse(response, BandwidthLimiter.open(request.getRemoteAddr(), BandwidthLimiter.getWeight(mode)));
+            response = throttledResponse;
+        }
+
         try {
             if (StringUtils.isEmpty(mode)) {
-                generateResponse(response, ClientErrorMessage.MODE_ERROR);
+                generateResponse(request, response, ClientErrorMessage.MODE_ERROR);
                 return;
             }
 
@@ -158,13 +211,13 @@ public abstract class AbstractFileManager implements IFileManager {
                         break;
                     case "download":
                         if (!StringUtils.isEmpty(pathParam)) {
-                            responseData = actionDownload(response, pathParam);
+                            responseData = actionDownload(request, response, pathParam);
                         }
                         break;
                     case "getimage":
                         if (!StringUtils.isEmpty(pathParam)) {
                             Boolean thumbnail = Boolean.parseBoolean(request.getParameter("thumbnail"));
-                            responseData = actionGetImage(response, pathParam, thumbnail);
+                            responseData = actionGetImage(request, response, pathParam, thumbnail);
                         }
                         break;
                     case "readfile" :
@@ -172,6 +225,19 @@ public abstract class AbstractFileManager implements IFileManager {
                             responseData = actionReadFile(request, response, pathParam);
                         }
                         break;
+                    case "uploadstatus":
+                        // resume point of a chunked upload
+                        final String sizeParam = request.getParameter("size");
+                        if (!StringUtils.isEmpty(pathParam) && !StringUtils.isEmpty(sizeParam)) {
+                            long size;
+                            try {
+                                size = Long.parseLong(sizeParam);
+                            } catch (NumberFormatException e) {
+                                throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("size"));
+                            }
+                            responseData = actionUploadStatus(pathParam, size, request.getParameter("uploadId"));
+                        }
+                        break;
                     case "summarize" :
                         responseData = actionSummarize();
                     break;
@@ -194,15 +260,28 @@ public abstract class AbstractFileManager implements IFileManager {
                     case "extract":
                         sourcePath = cleanPath(request.getParameter("source"));
                         targetPath = cleanPath(request.getParameter("target"));
+                        // optional selection of entries, by name or glob pattern
+                        final String[] entries = request.getParameterValues("entries");
                         if (!StringUtils.isEmpty(sourcePath) && !StringUtils.isEmpty(targetPath)) {
-                            responseData = actionExtract(sourcePath, targetPath);
+                            responseData = actionExtract(sourcePath, targetPath, entries != null ? Arrays.asList(entries) : null);
+                        }
+                        break;
+                    case "download":
+                        // several files and folders in one archive
+                        final String[] paths = request.getParameterValues("paths");
+                        if (paths != null && paths.length > 0) {
+                            List<String> cleanPaths = new ArrayList<>();
+                            for (String path : paths) {
+                                cleanPaths.add(cleanPath(path));
+                            }
+                            responseData = actionDownload(request, response, cleanPaths, request.getParameter("format"));
                         }
                         break;
                 }
             }
 
             if (responseData != null) {
-                generateResponse(response, responseData);
+                generateResponse(request, response, responseData);
             }
 
         } catch (FileManagerException e) {
@@ -211,6 +290,10 @@ public abstract class AbstractFileManager implements IFileManager {
         } catch (Exception e) {
             logger.info(e.getMessage(), e);
             generateErrorResponse(response, "ERROR_SERVER", null);
+        } finally {
+            if (throttledResponse != null) {
+                throttledResponse.close();
+            }
         }
 
 
@@ -229,13 +312,26 @@ public abstract class AbstractFileManager implements IFileManager {
         } catch (IOException ignore) {}
     }
 
-    private void generateResponse(HttpServletResponse response, Object data) throws IOException {
+    private void generateResponse(HttpServletRequest request, HttpServletResponse response, Object data) throws IOException {
         response.setStatus(200);
         response.addHeader("Content-Type", "application/json; charset=utf-8");
 
         Gson gson = new GsonBuilder().create();
+        String json = gson.toJson(new SuccessResponse(data));
+
+        // large listings are sent gzip-encoded to the clients accepting it
+        if (GzipCache.isCompressible("application/json", json.length())) {
+            response.addHeader("Vary", "Accept-Encoding");
+            if (HttpUtils.acceptsEncoding(request.getHeader("Accept-Encoding"), "gzip")) {
+                response.addHeader("Content-Encoding", "gzip");
+                try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(response.getOutputStream()), StandardCharsets.UTF_8)) {
+                    writer.write(json);
+                }
+                return;
+            }
+        }
 
-        response.getWriter().write(gson.toJson(new SuccessResponse(data)));
+        response.getWriter().write(json);
     }
 
     @Override
@@ -294,7 +390,7 @@ public abstract class AbstractFileManager implements IFileManager {
     }
 
     @Override
-    public FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException {
+    public FileData actionGetImage(HttpServletRequest request, HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException {
         throw new UnsupportedOperationException();
     }
 
@@ -319,7 +415,12 @@ public abstract class AbstractFileManager implements IFileManager {
     }
 
     @Override
-    public FileData actionDownload(HttpServletResponse response, String path) throws FileManagerException {
+    public FileData actionDownload(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileData actionDownload(HttpServletRequest request, HttpServletResponse response, List<String> paths, String format) throws FileManagerException {
         throw new UnsupportedOperationException();
     }
 
@@ -328,6 +429,11 @@ public abstract class AbstractFileManager implements IFileManager {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public FileData actionUploadStatus(String path, long size, String uploadId) throws FileManagerException {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public FileData actionSaveFile(String pathParam, String contentParam) throws FileManagerException {
         throw new UnsupportedOperationException();
@@ -335,6 +441,11 @@ public abstract class AbstractFileManager implements IFileManager {
 
     @Override
     public List<FileData>  actionExtract(String sourcePath, String targetPath) throws FileManagerException {
+        return actionExtract(sourcePath, targetPath, null);
+    }
+
+    @Override
+    public List<FileData>  actionExtract(String sourcePath, String targetPath, List<String> entries) throws FileManagerException {
         throw new UnsupportedOperationException();
     }
 
@@ -449,6 +560,20 @@ public abstract class AbstractFileManager implements IFileManager {
                     isAllowedFileExtension(file.getName()) && isAllowedPattern(file.getName(), false);
     }
 
+    /**
+     * @param filename the name of the served file
+     * @return the Cache-Control policy of the file's content class (image, audio / video or other)
+     */
+    protected String getCacheControl(String filename) {
+        String mimeType = FileManagerUtils.getMimeTypeByExt(FileUtils.getExtension(filename));
+        if (mimeType.startsWith("image/")) {
+            return propertiesConfig.getProperty("cache.control.image");
+        } else if (mimeType.startsWith("video/") || mimeType.startsWith("audio/")) {
+            return propertiesConfig.getProperty("cache.control.media");
+        }
+        return propertiesConfig.getProperty("cache.control.default");
+    }
+
     protected final BufferedImage generateThumbnail(BufferedImage source) {
         return Scalr.resize(source, Scalr.Method.AUTOMATIC, Scalr.Mode.FIT_TO_WIDTH, Integer.parseInt(propertiesConfig.getProperty("images.thumbnail.maxWidth")), Integer.parseInt(propertiesConfig.getProperty("images.thumbnail.maxHeight")), Scalr.OP_ANTIALIAS);
     }
@@ -0,0 +1,28 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.ArchiveCache;
+import com.fabriceci.fmc.util.BandwidthLimiter;
+import com.fabriceci.fmc.util.GzipCache;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Releases what the file manager registered or created outside of the web application when the application stops, so
+ * that a redeployment neither keeps the old classes loaded nor leaves the default cache directories behind.
+ */
+@WebListener
+public class FileManagerContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        BandwidthLimiter.unregister();
+        GzipCache.shutdown();
+        ArchiveCache.shutdown();
+    }
+}
@@ -26,7 +26,7 @@ public interface IFileManager {
 
     FileData actionAddFolder(String path, String name) throws FileManagerException;
 
-    FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException;
+    FileData actionGetImage(HttpServletRequest request, HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException;
 
     // TO test :
 
@@ -40,13 +40,33 @@ public interface IFileManager {
 
     FileData actionSummarize() throws FileManagerException;
 
-    FileData actionDownload(HttpServletResponse response, String path) throws FileManagerException;
+    FileData actionDownload(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException;
+
+    /**
+     * Download several files and folders as one archive.
+     *
+     * @param format "zip" or "tar", null for "zip"
+     */
+    FileData actionDownload(HttpServletRequest request, HttpServletResponse response, List<String> paths, String format) throws FileManagerException;
 
     List<FileData> actionUpload(HttpServletRequest request, String path) throws FileManagerException;
 
+    /**
+     * @param path the path of the file being uploaded in chunks
+     * @param size the size of the file
+     * @param uploadId the id of the upload chosen by the client, null if it did not choose one
+     * @return the file, its size being the number of bytes received from its start
+     */
+    FileData actionUploadStatus(String path, long size, String uploadId) throws FileManagerException;
+
     FileData actionSaveFile(String pathParam, String contentParam) throws FileManagerException;
 
     List<FileData> actionExtract(String sourcePath, String targetPath) throws FileManagerException;
 
+    /**
+     * @param entries the names or glob patterns of the entries to extract, null for all of them
+     */
+    List<FileData> actionExtract(String sourcePath, String targetPath, List<String> entries) throws FileManagerException;
+
 
 }
@@ -1,34 +1,52 @@
 package com.fabriceci.fmc;
 
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fabriceci.fmc.util.ByteRanges;
+import com.fabriceci.fmc.util.DiskCache;
+import com.fabriceci.fmc.util.FileChannelCache;
+import com.fabriceci.fmc.util.FileContentCache;
 import com.fabriceci.fmc.util.FileManagerUtils;
+import com.fabriceci.fmc.util.FileStamp;
+import com.fabriceci.fmc.util.GzipCache;
+import com.fabriceci.fmc.util.HttpUtils;
 import com.fabriceci.fmc.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.FileTime;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
 
 public class MultipartFileSender {
 
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private static final int DEFAULT_BUFFER_SIZE = 20480; // ..bytes = 20KB.
-    private static final long DEFAULT_EXPIRE_TIME = 604800000L; // ..ms = 1 week.
+    private static final String DEFAULT_CACHE_CONTROL = "private, no-cache";
+    private static final int DEFAULT_MAX_RANGES = 16;
+    private static final int GZIP_BUFFER_SIZE = 65536; // ..bytes = 64KB.
     private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
 
     Path filepath;
     HttpServletRequest request;
     HttpServletResponse response;
+    boolean async = false;
+    String cacheControl = DEFAULT_CACHE_CONTROL;
+    int maxRanges = DEFAULT_MAX_RANGES;
+    boolean attachment = false;
+    boolean compress = true;
+    boolean sendfile = true;
+    String fileName;
 
     public MultipartFileSender() {
     }
@@ -45,6 +63,69 @@ public class MultipartFileSender {
         return new MultipartFileSender().setFilepath(Paths.get(uri));
     }
 
+    /**
+     * Use Servlet 3.1 non-blocking output when the request supports it.
+     */
+    public MultipartFileSender async(boolean async) {
+        this.async = async;
+        return this;
+    }
+
+    /**
+     * Set the Cache-Control policy of the response, browsers revalidate with the ETag / Last-Modified validators.
+     */
+    public MultipartFileSender cacheControl(String cacheControl) {
+        if (!StringUtils.isEmpty(cacheControl)) {
+            this.cacheControl = cacheControl;
+        }
+        return this;
+    }
+
+    /**
+     * Set the maximum number of (coalesced) ranges served in a multipart response, a request asking for more
+     * ranges gets the complete file.
+     */
+    public MultipartFileSender maxRanges(int maxRanges) {
+        if (maxRanges > 0) {
+            this.maxRanges = maxRanges;
+        }
+        return this;
+    }
+
+    /**
+     * Always send the file as an attachment ('save as' dialogue), instead of inline when the browser supports it.
+     */
+    public MultipartFileSender attachment(boolean attachment) {
+        this.attachment = attachment;
+        return this;
+    }
+
+    /**
+     * Allow the gzip encoding of compressible files, when enabled in the configuration.
+     */
+    public MultipartFileSender compress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * Let the container send the file itself when it supports it (Tomcat sendfile). The container opens the file
+     * after {@link #serveResource()} returns, so this must be disabled for files which may be deleted by then.
+     */
+    public MultipartFileSender sendfile(boolean sendfile) {
+        this.sendfile = sendfile;
+        return this;
+    }
+
+    /**
+     * Set the file name sent to the client, and from which the content type is guessed, instead of the name of the
+     * file served.
+     */
+    public MultipartFileSender fileName(String fileName) {
+        this.fileName = fileName;
+        return this;
+    }
+
     //** internal setter **//
     private MultipartFileSender setFilepath(Path filepath) {
         this.filepath = filepath;
@@ -66,43 +147,78 @@ public class MultipartFileSender {
             return;
         }
 
-        if (!Files.exists(filepath)) {
+        // Serve small hot files from memory, otherwise open the file or reuse an already open channel on it.
+        FileStamp stamp;
+        ResponseBody body;
+        boolean inMemory;
+        try {
+            FileContentCache.Content content = FileContentCache.get(filepath);
+            inMemory = content != null;
+            if (inMemory) {
+                stamp = content.getStamp();
+                body = new ResponseBody(content);
+            } else {
+                FileChannelCache.Handle handle = FileChannelCache.open(filepath);
+                stamp = handle.getStamp();
+                body = new ResponseBody(handle.getChannel(), handle);
+            }
+        } catch (NoSuchFileException e) {
             logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
 
-        Long length = Files.size(filepath);
-        String fileName = filepath.getFileName().toString();
-        FileTime lastModifiedObj = Files.getLastModifiedTime(filepath);
+        try {
+            serveResource(stamp, body, inMemory);
+        } catch (Exception e) {
+            body.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Serve the file with the given body, the body is closed once the response is sent.
+     * @param inMemory whether the body is read from memory, the container's sendfile is then not used
+     */
+    private void serveResource(FileStamp stamp, ResponseBody body, boolean inMemory) throws Exception {
+        long length = stamp.getSize();
+        String fileName = this.fileName != null ? this.fileName : filepath.getFileName().toString();
 
-        if (StringUtils.isEmpty(fileName) || lastModifiedObj == null) {
+        if (StringUtils.isEmpty(fileName)) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            body.close();
             return;
         }
 
-        long lastModified = lastModifiedObj.toMillis() / 1000;
-        String filename = filepath.toFile().getName();
-        String fileExt = filename.substring(filename.lastIndexOf(".") + 1);
+        String eTag = stamp.getETag();
+        long lastModified = stamp.getLastModifiedHttp();
+        String fileExt = fileName.substring(fileName.lastIndexOf(".") + 1);
         String contentType = FileManagerUtils.getMimeTypeByExt(fileExt);
 
+        // Negotiate the content encoding, ranges are only served on the identity encoding.
+        boolean vary = compress && GzipCache.isCompressible(contentType, length);
+        boolean gzip = vary && request.getHeader("Range") == null
+                && HttpUtils.acceptsEncoding(request.getHeader("Accept-Encoding"), "gzip");
+        if (gzip) {
+            eTag = GzipCache.getETag(eTag);
+        }
 
         // Validate request headers for caching ---------------------------------------------------
 
         // If-None-Match header should contain "*" or ETag. If so, then return 304.
         String ifNoneMatch = request.getHeader("If-None-Match");
-        if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, fileName)) {
-            response.setHeader("ETag", fileName); // Required in 304.
-            response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+        if (ifNoneMatch != null && HttpUtils.matchesETag(ifNoneMatch, eTag, true)) {
+            sendNotModified(eTag, lastModified, vary);
+            body.close();
             return;
         }
 
-        // If-Modified-Since header should be greater than LastModified. If so, then return 304.
+        // If-Modified-Since header should be greater than or equal to LastModified. If so, then return 304.
         // This header is ignored if any If-None-Match header is specified.
-        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
-        if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
-            response.setHeader("ETag", fileName); // Required in 304.
-            response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+        long ifModifiedSince = HttpUtils.getDateHeader(request, "If-Modified-Since");
+        if (ifNoneMatch == null && ifModifiedSince != -1 && lastModified <= ifModifiedSince) {
+            sendNotModified(eTag, lastModified, vary);
+            body.close();
             return;
         }
 
@@ -110,71 +226,53 @@ public class MultipartFileSender {
 
         // If-Match header should contain "*" or ETag. If not, then return 412.
         String ifMatch = request.getHeader("If-Match");
-        if (ifMatch != null && !HttpUtils.matches(ifMatch, fileName)) {
+        if (ifMatch != null && !HttpUtils.matchesETag(ifMatch, eTag, false)) {
             response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            body.close();
             return;
         }
 
-        // If-Unmodified-Since header should be greater than LastModified. If not, then return 412.
-        long ifUnmodifiedSince = request.getDateHeader("If-Unmodified-Since");
-        if (ifUnmodifiedSince != -1 && ifUnmodifiedSince + 1000 <= lastModified) {
+        // If-Unmodified-Since header should be greater than or equal to LastModified. If not, then return 412.
+        long ifUnmodifiedSince = HttpUtils.getDateHeader(request, "If-Unmodified-Since");
+        if (ifUnmodifiedSince != -1 && lastModified > ifUnmodifiedSince) {
             response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            body.close();
             return;
         }
 
         // Validate and process range -------------------------------------------------------------
 
-        // Prepare some variables. The full Range represents the complete file.
-        Range full = new Range(0, length - 1, length);
-        List<Range> ranges = new ArrayList<>();
+        // Ranges to send, null for the complete file.
+        ByteRanges ranges = null;
 
         // Validate and process Range and If-Range headers.
         String range = request.getHeader("Range");
         if (range != null) {
 
-            // Range header should match format "bytes=n-n,n-n,n-n...". If not, then return 416.
-            if (!range.matches("^bytes=\\d*-\\d*(,\\d*-\\d*)*$")) {
+            // Range header should match format "bytes=n-n,n-n,n-n..." with at least one satisfiable range.
+            // If not, then return 416.
+            ranges = ByteRanges.parse(range, length, maxRanges);
+            if (ranges == ByteRanges.TOO_MANY) {
+                // Too many ranges (even once coalesced) are ignored, the complete file is sent.
+                ranges = null;
+            } else if (ranges == null || ranges.isEmpty()) {
                 response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
                 response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                body.close();
                 return;
             }
 
+            // If-Range header should contain the strong ETag or the exact LastModified. If not, send the full file.
             String ifRange = request.getHeader("If-Range");
-            if (ifRange != null && !ifRange.equals(fileName)) {
-                try {
-                    long ifRangeTime = request.getDateHeader("If-Range"); // Throws IAE if invalid.
-                    if (ifRangeTime != -1) {
-                        ranges.add(full);
-                    }
-                } catch (IllegalArgumentException ignore) {
-                    ranges.add(full);
+            if (ifRange != null) {
+                boolean ifRangeMatches;
+                if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                    ifRangeMatches = HttpUtils.matchesETag(ifRange, eTag, false);
+                } else {
+                    ifRangeMatches = HttpUtils.getDateHeader(request, "If-Range") == lastModified;
                 }
-            }
-
-            // If any valid If-Range header, then process each part of byte range.
-            if (ranges.isEmpty()) {
-                for (String part : range.substring(6).split(",")) {
-                    // Assuming a file with length of 100, the following examples returns bytes at:
-                    // 50-80 (50 to 80), 40- (40 to length=100), -20 (length-20=80 to length=100).
-                    long start = Range.sublong(part, 0, part.indexOf("-"));
-                    long end = Range.sublong(part, part.indexOf("-") + 1, part.length());
-
-                    if (start == -1) {
-                        start = length - end;
-                        end = length - 1;
-                    } else if (end == -1 || end > length - 1) {
-                        end = length - 1;
-                    }
-
-                    // Check if Range is syntactically valid. If not, then return 416.
-                    if (start > end) {
-                        response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
-                        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
-                        return;
-                    }
-
-                    // Add range.
-                    ranges.add(new Range(start, end, length));
+                if (!ifRangeMatches) {
+                    ranges = null;
                 }
             }
         }
@@ -195,6 +293,9 @@ public class MultipartFileSender {
             String accept = request.getHeader("Accept");
             disposition = accept != null && HttpUtils.accepts(accept, contentType) ? "inline" : "attachment";
         }
+        if (attachment) {
+            disposition = "attachment";
+        }
         logger.debug("Content-Type : {}", contentType);
         // Initialize response.
         response.reset();
@@ -203,144 +304,179 @@ public class MultipartFileSender {
         response.setHeader("Content-Disposition", disposition + ";filename=\"" + fileName + "\"");
         logger.debug("Content-Disposition : {}", disposition);
         response.setHeader("Accept-Ranges", "bytes");
-        response.setHeader("ETag", fileName);
+        response.setHeader("ETag", eTag);
         response.setDateHeader("Last-Modified", lastModified);
-        response.setDateHeader("Expires", System.currentTimeMillis() + DEFAULT_EXPIRE_TIME);
-
-        // Send requested file (part(s)) to client ------------------------------------------------
-
-        // Prepare streams.
-        try (RandomAccessFile input = new RandomAccessFile(filepath.toFile(), "r");
-             OutputStream output = response.getOutputStream()) {
+        response.setHeader("Cache-Control", cacheControl);
+        if (vary) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
 
-            if (ranges.isEmpty() || ranges.get(0) == full) {
-                // Return full file.
-                logger.info("Return full file");
-                response.setContentType(contentType);
-                response.setHeader("Content-Range", "bytes " + full.start + "-" + full.end + "/" + full.total);
-                response.setHeader("Content-Length", String.valueOf(full.length));
-                Range.copy(input, output, length, full.start, full.length);
+        if (gzip) {
+            sendCompressed(stamp, body, contentType);
+            return;
+        }
 
+        // Let the container send the file itself (Tomcat sendfile) when possible, small cached files are
+        // written from memory.
+        boolean sentByContainer = false;
+        if (sendfile && !inMemory && !isHead()) {
+            if (ranges == null) {
+                sentByContainer = sendfile(0, length - 1, length, contentType);
             } else if (ranges.size() == 1) {
+                sentByContainer = sendfile(ranges.getStart(0), ranges.getEnd(0), length, contentType);
+            }
+        }
+        if (sentByContainer) {
+            body.close();
+            return;
+        }
 
-                // Return single part of file.
-                Range r = ranges.get(0);
-                logger.info("Return 1 part of file : from ({}) to ({})", r.start, r.end);
-                response.setContentType(contentType);
-                response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
-                response.setHeader("Content-Length", String.valueOf(r.length));
-                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
-                // Copy single part range.
-                Range.copy(input, output, length, r.start, r.length);
+        if (ranges == null) {
+            // Return full file.
+            logger.info("Return full file");
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", "bytes 0-" + (length - 1) + "/" + length);
+            response.setContentLengthLong(length);
+            body.addRegion(0, length);
+
+        } else if (ranges.size() == 1) {
+
+            // Return single part of file.
+            logger.info("Return 1 part of file : from ({}) to ({})", ranges.getStart(0), ranges.getEnd(0));
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", ranges.getContentRange(0));
+            response.setContentLengthLong(ranges.getLength(0));
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+            // Copy single part range.
+            body.addRegion(ranges.getStart(0), ranges.getLength(0));
+
+        } else {
+
+            // Return multiple parts of file.
+            response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+
+            // Copy multi part range.
+            for (int i = 0; i < ranges.size(); i++) {
+                logger.info("Return multi part of file : from ({}) to ({})", ranges.getStart(i), ranges.getEnd(i));
+                // Add multipart boundary and header fields for every range.
+                body.addString("\r\n--" + MULTIPART_BOUNDARY + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + ranges.getContentRange(i) + "\r\n\r\n");
+                // Copy single part range of multi part range.
+                body.addRegion(ranges.getStart(i), ranges.getLength(i));
+            }
 
-            } else {
+            // End with multipart boundary.
+            body.addString("\r\n--" + MULTIPART_BOUNDARY + "--\r\n");
+            response.setContentLengthLong(body.getLength());
+        }
 
-                // Return multiple parts of file.
-                response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
-                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
-
-                // Cast back to ServletOutputStream to get the easy println methods.
-                ServletOutputStream sos = (ServletOutputStream) output;
-
-                // Copy multi part range.
-                for (Range r : ranges) {
-                    logger.info("Return multi part of file : from ({}) to ({})", r.start, r.end);
-                    // Add multipart boundary and header fields for every range.
-                    sos.println();
-                    sos.println("--" + MULTIPART_BOUNDARY);
-                    sos.println("Content-Type: " + contentType);
-                    sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
-                    // Copy single part range of multi part range.
-                    Range.copy(input, output, length, r.start, r.length);
-                }
+        // Send requested file (part(s)) to client ------------------------------------------------
 
-                // End with multipart boundary.
-                sos.println();
-                sos.println("--" + MULTIPART_BOUNDARY + "--");
-            }
+        if (isHead()) {
+            // Same headers as a GET, without the body.
+            body.close();
+            return;
         }
+        body.send(request, response, async);
+    }
 
+    private boolean isHead() {
+        return "HEAD".equals(request.getMethod());
     }
 
-    private static class Range {
-        long start;
-        long end;
-        long length;
-        long total;
-
-        /**
-         * Construct a byte range.
-         * @param start Start of the byte range.
-         * @param end End of the byte range.
-         * @param total Total length of the byte source.
-         */
-        public Range(long start, long end, long total) {
-            this.start = start;
-            this.end = end;
-            this.length = end - start + 1;
-            this.total = total;
+    private void sendNotModified(String eTag, long lastModified, boolean vary) {
+        response.reset();
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        // Required in 304.
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", cacheControl);
+        if (vary) {
+            response.setHeader("Vary", "Accept-Encoding");
         }
+    }
 
-        public static long sublong(String value, int beginIndex, int endIndex) {
-            String substring = value.substring(beginIndex, endIndex);
-            return (substring.length() > 0) ? Long.parseLong(substring) : -1;
+    /**
+     * Send the complete file gzip-encoded, from the cache of compressed variants or compressed on the fly when
+     * the file is too large to be cached.
+     */
+    private void sendCompressed(FileStamp stamp, final ResponseBody body, String contentType) throws IOException {
+        final long length = stamp.getSize();
+        logger.info("Return gzip encoded file");
+        response.setContentType(contentType);
+        response.setHeader("Content-Encoding", "gzip");
+
+        DiskCache.Lease compressed;
+        try {
+            compressed = GzipCache.acquire(filepath.toAbsolutePath() + "|" + stamp.getETag(), length, new DiskCache.Producer() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    try (GZIPOutputStream gzip = new GZIPOutputStream(out, GZIP_BUFFER_SIZE)) {
+                        body.writeRegion(0, length, gzip);
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            body.close();
+            throw e;
         }
 
-        private static void copy(RandomAccessFile input, OutputStream output, long inputSize, long start, long length) throws IOException {
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int read;
+        if (compressed == null) {
+            // Compress on the fly, the length is unknown.
+            if (isHead()) {
+                body.close();
+                return;
+            }
+            try (OutputStream out = new GZIPOutputStream(response.getOutputStream(), GZIP_BUFFER_SIZE)) {
+                body.writeRegion(0, length, out);
+            } finally {
+                body.close();
+            }
+            return;
+        }
 
-            if (inputSize == length) {
-                // Write full range.
-                while ((read = input.read(buffer)) > 0) {
-                    output.write(buffer, 0, read);
-                    output.flush();
-                }
+        body.close();
+        ResponseBody compressedBody;
+        // opened while leased: an eviction afterwards does not affect the open channel
+        try (DiskCache.Lease lease = compressed) {
+            FileContentCache.Content content = FileContentCache.get(lease.getPath());
+            if (content != null) {
+                compressedBody = new ResponseBody(content).addRegion(0, content.getSize());
             } else {
-                input.seek(start);
-                long toRead = length;
-
-                while ((read = input.read(buffer)) > 0) {
-                    if ((toRead -= read) > 0) {
-                        output.write(buffer, 0, read);
-                        output.flush();
-                    } else {
-                        output.write(buffer, 0, (int) toRead + read);
-                        output.flush();
-                        break;
-                    }
-                }
+                FileChannel channel = FileChannel.open(lease.getPath(), StandardOpenOption.READ);
+                compressedBody = new ResponseBody(channel).addRegion(0, channel.size());
             }
         }
+        response.setContentLengthLong(compressedBody.getLength());
+        if (isHead()) {
+            compressedBody.close();
+            return;
+        }
+        compressedBody.send(request, response, async);
     }
-    private static class HttpUtils {
-
-        /**
-         * Returns true if the given accept header accepts the given value.
-         * @param acceptHeader The accept header.
-         * @param toAccept The value to be accepted.
-         * @return True if the given accept header accepts the given value.
-         */
-        public static boolean accepts(String acceptHeader, String toAccept) {
-            String[] acceptValues = acceptHeader.split("\\s*(,|;)\\s*");
-            Arrays.sort(acceptValues);
-
-            return Arrays.binarySearch(acceptValues, toAccept) > -1
-                    || Arrays.binarySearch(acceptValues, toAccept.replaceAll("/.*$", "/*")) > -1
-                    || Arrays.binarySearch(acceptValues, "*/*") > -1;
+
+    /**
+     * Hand the range over to the container if it supports sendfile (Tomcat NIO/APR connectors), the bytes are
+     * then copied by the kernel from the page cache to the socket once the request returns.
+     * @return true if the container will send the range
+     */
+    private boolean sendfile(long start, long end, long total, String contentType) {
+        if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR)) || ThrottledResponse.isThrottled(response)) {
+            return false;
         }
 
-        /**
-         * Returns true if the given match header matches the given value.
-         * @param matchHeader The match header.
-         * @param toMatch The value to be matched.
-         * @return True if the given match header matches the given value.
-         */
-        public static boolean matches(String matchHeader, String toMatch) {
-            String[] matchValues = matchHeader.split("\\s*,\\s*");
-            Arrays.sort(matchValues);
-            return Arrays.binarySearch(matchValues, toMatch) > -1
-                    || Arrays.binarySearch(matchValues, "*") > -1;
+        logger.info("Return part of file with sendfile : from ({}) to ({})", start, end);
+        response.setContentType(contentType);
+        if (end - start + 1 != total) {
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + total);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
         }
+        response.setContentLengthLong(end - start + 1);
+        request.setAttribute(SENDFILE_FILENAME_ATTR, filepath.toAbsolutePath().toString());
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, end + 1);
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,274 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.BufferPool;
+import com.fabriceci.fmc.util.FileContentCache;
+import com.fabriceci.fmc.util.TransferUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The body of a file response: a sequence of raw bytes (e.g. multipart headers) and regions of an open file or of
+ * a file cached in memory.
+ * <p>
+ * The body can be written in a blocking way on the request thread, or with Servlet 3.1 non-blocking I/O: the
+ * request is put in asynchronous mode and chunks are pumped from the container's {@link WriteListener} callbacks
+ * only while the socket is writable, so a slow client does not hold a container thread.
+ * <p>
+ * The body owns the file channel (or the resource holding it) and closes it once written, failed or timed out. In
+ * asynchronous mode it also owns a pooled chunk buffer, used only under the body's lock: errors and timeouts only
+ * complete the request, the channel and the buffer are released once, by {@link #onComplete(AsyncEvent)}, which the
+ * container calls last.
+ */
+public class ResponseBody implements WriteListener, AsyncListener, Closeable {
+
+    private static final int ASYNC_CHUNK_SIZE = 65536; // ..bytes = 64KB.
+
+    private final Logger logger = LoggerFactory.getLogger(ResponseBody.class);
+
+    private final FileChannel channel;
+    private final Closeable resource;
+    private final FileContentCache.Content content;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long length = 0;
+
+    private AsyncContext asyncContext;
+    private ServletOutputStream asyncOutput;
+    // guarded by this
+    private byte[] asyncBuffer;
+    private boolean completing = false;
+    private boolean released = false;
+
+    public ResponseBody(FileChannel channel) {
+        this(channel, channel);
+    }
+
+    /**
+     * @param channel the channel to read the file regions from, only positional reads are used
+     * @param resource the resource to close once the body is written, e.g. a cached channel handle
+     */
+    public ResponseBody(FileChannel channel, Closeable resource) {
+        this.channel = channel;
+        this.resource = resource;
+        this.content = null;
+    }
+
+    /**
+     * @param content the cached content to read the file regions from
+     */
+    public ResponseBody(FileContentCache.Content content) {
+        this.channel = null;
+        this.resource = null;
+        this.content = content;
+    }
+
+    public ResponseBody addBytes(byte[] bytes) {
+        segments.add(new Segment(bytes, 0, bytes.length));
+        length += bytes.length;
+        return this;
+    }
+
+    public ResponseBody addString(String value) {
+        return addBytes(value.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    public ResponseBody addRegion(long position, long count) {
+        segments.add(new Segment(null, position, count));
+        length += count;
+        return this;
+    }
+
+    /**
+     * @return the total number of bytes of the body
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Write the body to the response, asynchronously if requested and supported by the request. Throttled responses
+     * are always written in a blocking way.
+     */
+    public void send(HttpServletRequest request, HttpServletResponse response, boolean async) throws IOException {
+        if (async && request.isAsyncSupported() && !ThrottledResponse.isThrottled(response)) {
+            sendAsync(request, response);
+        } else {
+            try (OutputStream output = response.getOutputStream()) {
+                writeTo(output);
+            }
+        }
+    }
+
+    /**
+     * Write the whole body to the given stream and close the file channel.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        try {
+            for (Segment segment : segments) {
+                if (segment.bytes != null) {
+                    output.write(segment.bytes);
+                } else {
+                    writeRegion(segment.position, segment.count, output);
+                }
+            }
+            segments.clear();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Write a region of the file to the given stream, regardless of the segments of the body.
+     */
+    public void writeRegion(long position, long count, OutputStream output) throws IOException {
+        if (content != null) {
+            content.writeTo(output, position, count);
+        } else {
+            TransferUtils.transfer(channel, position, count, output);
+        }
+    }
+
+    /**
+     * Start the asynchronous mode and let the container pull the body through {@link #onWritePossible()}.
+     */
+    public void sendAsync(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            if (content == null) {
+                asyncBuffer = BufferPool.acquire(ASYNC_CHUNK_SIZE);
+            }
+            asyncContext = request.startAsync(request, response);
+            // the transfer may legitimately last longer than the container's default timeout,
+            // dead connections are reported through onError
+            asyncContext.setTimeout(0);
+            asyncContext.addListener(this);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        // from here on the resources are released by onComplete, whatever happens
+        try {
+            asyncOutput = response.getOutputStream();
+            asyncOutput.setWriteListener(this);
+        } catch (IOException | RuntimeException e) {
+            complete();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (!completing && asyncOutput.isReady()) {
+            Segment segment = segments.peek();
+            if (segment == null) {
+                complete();
+                return;
+            }
+
+            if (segment.bytes != null) {
+                asyncOutput.write(segment.bytes);
+                segments.poll();
+                continue;
+            }
+
+            int read = 0;
+            if (content != null) {
+                read = (int) Math.min(ASYNC_CHUNK_SIZE, segment.count);
+                content.writeTo(asyncOutput, segment.position, read);
+            } else if (segment.count > 0) {
+                read = channel.read(ByteBuffer.wrap(asyncBuffer, 0, (int) Math.min(ASYNC_CHUNK_SIZE, segment.count)), segment.position);
+                if (read < 0) throw new EOFException("Unexpected end of file at position " + segment.position);
+                asyncOutput.write(asyncBuffer, 0, read);
+            }
+            segment.position += read;
+            segment.count -= read;
+            if (segment.count == 0) segments.poll();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.info("Asynchronous transfer aborted: {}", t.getMessage());
+        complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Complete the asynchronous request once, which stops the writes; the container then calls
+     * {@link #onComplete(AsyncEvent)}.
+     */
+    private synchronized void complete() {
+        if (completing) return;
+        completing = true;
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException ignore) {
+            // already completed by the container
+        }
+    }
+
+    /**
+     * Release the file channel and the buffer, the body can not be written anymore. Called once the body is written
+     * in blocking mode, or by {@link #onComplete(AsyncEvent)} in asynchronous mode.
+     */
+    @Override
+    public synchronized void close() {
+        if (released) return;
+        released = true;
+        completing = true;
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (IOException ignore) {}
+        }
+        if (asyncBuffer != null) {
+            BufferPool.release(asyncBuffer);
+            asyncBuffer = null;
+        }
+    }
+
+    private static class Segment {
+        final byte[] bytes;
+        long position;
+        long count;
+
+        Segment(byte[] bytes, long position, long count) {
+            this.bytes = bytes;
+            this.position = position;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.BandwidthLimiter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Response whose output stream is shaped by a {@link BandwidthLimiter} transfer.
+ * <p>
+ * Everything written through {@link #getOutputStream()} (files, ranges, archives) is throttled. The container's
+ * sendfile and the non-blocking output mode bypass or can not wait on the stream, they are not used for throttled
+ * responses (see {@link #isThrottled(ServletResponse)}).
+ */
+public class ThrottledResponse extends HttpServletResponseWrapper implements Closeable {
+
+    private static final int CHUNK_SIZE = 16384; // ..bytes = 16KB.
+
+    private final BandwidthLimiter.Transfer transfer;
+    private ThrottledOutputStream output;
+
+    public ThrottledResponse(HttpServletResponse response, BandwidthLimiter.Transfer transfer) {
+        super(response);
+        this.transfer = transfer;
+    }
+
+    /**
+     * @return true if the given response, or a response it wraps, is throttled
+     */
+    public static boolean isThrottled(ServletResponse response) {
+        while (response instanceof ServletResponseWrapper) {
+            if (response instanceof ThrottledResponse) return true;
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+        return false;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (output == null) {
+            output = new ThrottledOutputStream(super.getOutputStream());
+        }
+        return output;
+    }
+
+    /**
+     * End the transfer, its share of the bandwidth goes back to the other transfers.
+     */
+    @Override
+    public void close() {
+        transfer.close();
+    }
+
+    private class ThrottledOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+
+        ThrottledOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            transfer.acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // small chunks keep the rate smooth
+            while (len > 0) {
+                int chunk = Math.min(len, CHUNK_SIZE);
+                transfer.acquire(chunk);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+}
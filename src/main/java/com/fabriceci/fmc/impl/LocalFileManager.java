@@ -9,6 +9,11 @@ import com.fabriceci.fmc.model.FileAttributes;
 import com.fabriceci.fmc.model.FileData;
 import com.fabriceci.fmc.model.FileType;
 import com.fabriceci.fmc.util.*;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
 import javax.imageio.ImageIO;
 import javax.servlet.ServletException;
@@ -23,12 +28,14 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.List;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import static com.fabriceci.fmc.util.FileUtils.getExtension;
 
 public class LocalFileManager extends AbstractFileManager {
 
+    // the chunked uploads in progress, unless upload.chunk.dir is set
+    private static final String UPLOAD_DIR_NAME = ".uploads";
+
     private File docRoot;
 
     public LocalFileManager() throws FMInitializationException {
@@ -61,6 +68,11 @@ public class LocalFileManager extends AbstractFileManager {
     @Override
     public List<FileData> actionReadFolder(String path, String type) throws FileManagerException {
 
+        ZipPath zipPath = getZipPath(path);
+        if (zipPath != null) {
+            return readZipFolder(zipPath, type);
+        }
+
         File dir = getFile(path);
 
         checkPath(dir);
@@ -108,6 +120,17 @@ public class LocalFileManager extends AbstractFileManager {
     @Override
     public FileData actionGetInfo(String path) throws FileManagerException {
 
+        ZipPath zipPath = getZipPath(path);
+        if (zipPath != null) {
+            checkZipArchive(zipPath);
+            try (FileChannelCache.Handle handle = FileChannelCache.open(zipPath.archive.toPath())) {
+                ZipIndex.Entry entry = getZipFile(zipPath, ZipIndexCache.get(zipPath.archive.toPath(), handle));
+                return getZipEntryInfo(zipPath, entry);
+            } catch (IOException e) {
+                throw new FileManagerException(ClientErrorMessage.ERROR_OPENING_FILE);
+            }
+        }
+
         File file = new File(docRoot.getPath() + path);
 
         if (file.isDirectory()) {
@@ -245,6 +268,7 @@ public class LocalFileManager extends AbstractFileManager {
         try {
 
             Files.move(sourceFile.toPath(), targetFile.toPath());
+            invalidateCaches(sourceFile.toPath());
             File thumbnailFile = new File(getThumbnailPath(sourcePath));
             if (thumbnailFile.exists()) {
                 if (thumbnailFile.isFile()) {
@@ -302,6 +326,7 @@ public class LocalFileManager extends AbstractFileManager {
             if (!file.delete()) {
                 throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
             }
+            invalidateCaches(file.toPath());
             if (thumbnail.exists()) {
                 thumbnail.delete();
             }
@@ -310,8 +335,7 @@ public class LocalFileManager extends AbstractFileManager {
     }
 
     @Override
-    public FileData actionGetImage(HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException {
-        InputStream is;
+    public FileData actionGetImage(HttpServletRequest request, HttpServletResponse response, String path, Boolean thumbnail) throws FileManagerException {
         File file = getFile(path);
 
         checkPath(file);
@@ -325,45 +349,247 @@ public class LocalFileManager extends AbstractFileManager {
         checkRestrictions(file);
 
         try {
-            String filename = file.getName();
-            String fileExt = filename.substring(filename.lastIndexOf(".") + 1);
-            String mimeType = (!StringUtils.isEmpty(getExtension(fileExt))) ? FileManagerUtils.getMimeTypeByExt(fileExt) : "application/octet-stream";
-            long fileSize = file.length();
+            File imageFile = file;
             if (thumbnail) {
 
                 if (Boolean.parseBoolean(propertiesConfig.getProperty("images.thumbnail.enabled"))) {
 
-                    File thumbnailFile = getThumbnail(path, true);
-                    if (thumbnailFile == null) throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
-                    is = new FileInputStream(thumbnailFile);
-                    fileSize = thumbnailFile.length();
+                    imageFile = getThumbnail(path, true);
+                    if (imageFile == null) throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
                 } else {
                     // no cache
-                    BufferedImage image = ImageIO.read(file);
-                    BufferedImage resizedImage = generateThumbnail(image);
-                    ByteArrayOutputStream os = new ByteArrayOutputStream();
-                    ImageIO.write(resizedImage, fileExt, os);
-                    is = new ByteArrayInputStream(os.toByteArray());
-                    fileSize = os.toByteArray().length;
+                    sendGeneratedThumbnail(request, response, file);
+                    return null;
                 }
-
-            } else {
-                is = new FileInputStream(file);
             }
 
-            response.setContentType(mimeType);
-            response.setHeader("Content-Length", Long.toString(fileSize));
-            response.setHeader("Content-Transfer-Encoding", "binary");
-            response.setHeader("Content-Disposition", "inline; filename=\"" + filename + "\"");
-
-            FileUtils.copy(new BufferedInputStream(is), response.getOutputStream());
-        } catch (IOException e) {
+            // originals and cached thumbnails get validators, ranges and HEAD like readfile
+            fileSender(request, response, imageFile).serveResource();
+        } catch (FileManagerException e) {
+            throw e;
+        } catch (Exception e) {
             logger.error("Error serving image: " + file.getName(), e);
             throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
         }
         return null;
     }
 
+    private void sendGeneratedThumbnail(HttpServletRequest request, HttpServletResponse response, File file) throws IOException {
+        String filename = file.getName();
+        String fileExt = filename.substring(filename.lastIndexOf(".") + 1);
+        String mimeType = (!StringUtils.isEmpty(getExtension(fileExt))) ? FileManagerUtils.getMimeTypeByExt(fileExt) : "application/octet-stream";
+
+        BufferedImage image = ImageIO.read(file);
+        BufferedImage resizedImage = generateThumbnail(image);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ImageIO.write(resizedImage, fileExt, os);
+
+        response.setContentType(mimeType);
+        response.setHeader("Content-Length", Integer.toString(os.size()));
+        response.setHeader("Content-Transfer-Encoding", "binary");
+        response.setHeader("Content-Disposition", "inline; filename=\"" + filename + "\"");
+
+        if (!"HEAD".equals(request.getMethod())) {
+            try (OutputStream out = response.getOutputStream()) {
+                os.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * @return a sender of the given file configured with the readfile settings
+     */
+    private MultipartFileSender fileSender(HttpServletRequest request, HttpServletResponse response, File file) {
+        return MultipartFileSender.fromFile(file)
+                .with(request)
+                .with(response)
+                .async(Boolean.parseBoolean(propertiesConfig.getProperty("async.enabled")))
+                .cacheControl(getCacheControl(file.getName()))
+                .maxRanges(Integer.parseInt(propertiesConfig.getProperty("readfile.maxRanges", "16")));
+    }
+
+
+    /**
+     * A path inside a ZIP archive, browsed as a folder.
+     */
+    private static class ZipPath {
+        final File archive;
+        final String archivePath;
+        final String entryName;
+
+        /**
+         * @param archivePath the path of the archive, e.g. "/folder/archive.zip"
+         * @param entryName the path in the archive, "" for its root, ending with "/" for a folder
+         */
+        ZipPath(File archive, String archivePath, String entryName) {
+            this.archive = archive;
+            this.archivePath = archivePath;
+            this.entryName = entryName;
+        }
+    }
+
+    /**
+     * @return the archive and the path in the archive when browsing of archives is enabled and the path goes through
+     * an archive ("/folder/archive.zip/..."), null otherwise
+     */
+    private ZipPath getZipPath(String path) {
+        if (!Boolean.parseBoolean(propertiesConfig.getProperty("zip.browse.enabled"))) {
+            return null;
+        }
+        // real files first, "/archive.zip/" is the archive browsed as a folder
+        File file = getFile(path);
+        if (file.isDirectory() || file.exists() && !path.endsWith("/")) {
+            return null;
+        }
+        String lowerCase = path.toLowerCase();
+        for (int index = lowerCase.indexOf(".zip/"); index >= 0; index = lowerCase.indexOf(".zip/", index + 1)) {
+            String archivePath = path.substring(0, index + 4);
+            File archive = getFile(archivePath);
+            if (archive.isFile()) {
+                return new ZipPath(archive, archivePath, path.substring(index + 5));
+            }
+        }
+        return null;
+    }
+
+    private void checkZipArchive(ZipPath zipPath) throws FileManagerException {
+        checkPath(zipPath.archive);
+        checkReadPermission(zipPath.archive);
+        checkRestrictions(zipPath.archive);
+    }
+
+    /**
+     * @return the file of the archive the path points to, if its name is allowed
+     */
+    private ZipIndex.Entry getZipFile(ZipPath zipPath, ZipIndex index) throws FileManagerException {
+        ZipIndex.Entry entry = index.getEntry(zipPath.entryName);
+        if (entry == null) {
+            if (index.getEntry(zipPath.entryName + "/") != null) {
+                throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
+            }
+            throw new FileManagerException(ClientErrorMessage.FILE_DOES_NOT_EXIST, Collections.singletonList(zipPath.entryName));
+        }
+        if (entry.isDirectory()) {
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
+        }
+        if (!isAllowedFileExtension(entry.getFileName())) {
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_NAME, Collections.singletonList(entry.getFileName()));
+        }
+        if (!isAllowedPattern(entry.getFileName(), false)) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_FILE_TYPE, Collections.singletonList(entry.getFileName()));
+        }
+        return entry;
+    }
+
+    private List<FileData> readZipFolder(ZipPath zipPath, String type) throws FileManagerException {
+        checkZipArchive(zipPath);
+
+        String folder = zipPath.entryName.isEmpty() || zipPath.entryName.endsWith("/") ? zipPath.entryName : zipPath.entryName + "/";
+        List<ZipIndex.Entry> entries;
+        try (FileChannelCache.Handle handle = FileChannelCache.open(zipPath.archive.toPath())) {
+            entries = ZipIndexCache.get(zipPath.archive.toPath(), handle).list(folder);
+        } catch (IOException e) {
+            throw new FileManagerException(ClientErrorMessage.UNABLE_TO_OPEN_DIRECTORY, Collections.singletonList(zipPath.archivePath));
+        }
+        if (entries == null) {
+            throw new FileManagerException(ClientErrorMessage.DIRECTORY_NOT_EXIST, Collections.singletonList(zipPath.archivePath + "/" + folder));
+        }
+
+        List<FileData> fileDataList = new ArrayList<>();
+        for (ZipIndex.Entry entry : entries) {
+            String filename = entry.getFileName();
+            if (!isAllowedPattern(filename, entry.isDirectory())) {
+                continue;
+            }
+            if (entry.isDirectory() || type == null || type.equals("images") && isAllowedImageExt(getExtension(filename))) {
+                fileDataList.add(getZipEntryInfo(zipPath, entry));
+            }
+        }
+        return fileDataList;
+    }
+
+    /**
+     * Files and folders of an archive are read-only, images are not measured.
+     */
+    private FileData getZipEntryInfo(ZipPath zipPath, ZipIndex.Entry entry) {
+        String path = zipPath.archivePath + "/" + entry.getName();
+        FileData fileData = new FileData();
+        fileData.setId(path);
+        fileData.setType(entry.isDirectory() ? FileType.folder : FileType.file);
+
+        FileAttributes fileAttributes = new FileAttributes();
+        fileAttributes.setName(entry.getFileName());
+        fileAttributes.setPath(getDynamicPath(path));
+        fileAttributes.setReadable(1);
+        fileAttributes.setWritable(0);
+        if (!entry.isDirectory()) {
+            fileAttributes.setSize(entry.getSize());
+            fileAttributes.setWidth(0);
+            fileAttributes.setHeight(0);
+        }
+        fileAttributes.setModified(entry.getTime() / 1000);
+        fileAttributes.setCreated(entry.getTime() / 1000);
+        fileData.setAttributes(fileAttributes);
+        return fileData;
+    }
+
+    /**
+     * Send a file of an archive, inflated from the archive as it is sent. The response has a length and validators
+     * but no ranges.
+     */
+    private void sendZipFile(HttpServletRequest request, HttpServletResponse response, ZipPath zipPath, boolean attachment) throws FileManagerException {
+        checkZipArchive(zipPath);
+
+        try (FileChannelCache.Handle handle = FileChannelCache.open(zipPath.archive.toPath())) {
+            ZipIndex index = ZipIndexCache.get(zipPath.archive.toPath(), handle);
+            ZipIndex.Entry entry = getZipFile(zipPath, index);
+            ZipExtractor.checkRatio(entry.getName(), entry.getSize(), entry.getCompressedSize());
+
+            // the file changes with the archive
+            String archiveETag = handle.getStamp().getETag();
+            String eTag = archiveETag.substring(0, archiveETag.length() - 1) + "-" + Long.toHexString(entry.getCrc())
+                    + "-" + Integer.toHexString(entry.getName().hashCode()) + "\"";
+            String filename = entry.getFileName();
+
+            response.setHeader("ETag", eTag);
+            response.setDateHeader("Last-Modified", entry.getTime() / 1000 * 1000);
+            response.setHeader("Cache-Control", attachment ? "must-revalidate, post-check=0, pre-check=0" : getCacheControl(filename));
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null && HttpUtils.matchesETag(ifNoneMatch, eTag, true)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            response.setContentType(FileManagerUtils.getMimeTypeByExt(getExtension(filename)));
+            response.setHeader("Content-Disposition", (attachment ? "attachment" : "inline") + ";filename=\"" + filename + "\"");
+            response.setHeader("Accept-Ranges", "none");
+            response.setContentLengthLong(entry.getSize());
+            if ("HEAD".equals(request.getMethod())) {
+                return;
+            }
+
+            // stops at the declared length, the last bytes are held back if the CRC does not match
+            byte[] buffer = BufferPool.acquire();
+            try (InputStream in = index.openStream(handle.getChannel(), entry);
+                 OutputStream out = response.getOutputStream()) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        } catch (ZipExtractor.LimitException e) {
+            logger.warn("Sending " + zipPath.archivePath + "/" + zipPath.entryName + " rejected: " + e.getMessage());
+            throw new FileManagerException(ClientErrorMessage.STORAGE_SIZE_EXCEED);
+        } catch (IOException e) {
+            if (response.isCommitted()) {
+                logger.error("Sending " + zipPath.archivePath + "/" + zipPath.entryName + " aborted", e);
+                return;
+            }
+            throw new FileManagerException(ClientErrorMessage.ERROR_OPENING_FILE);
+        }
+    }
 
     /**
      * NEED TEST
@@ -401,6 +627,7 @@ public class LocalFileManager extends AbstractFileManager {
         checkRestrictions(targetFile);
 
 
+        invalidateCaches(sourceFile.toPath());
         if (!sourceFile.renameTo(targetFile)) {
             if (sourceFile.isDirectory()) {
                 throw new FileManagerException(ClientErrorMessage.ERROR_RENAMING_DIRECTORY, Arrays.asList(FileUtils.getBaseName(sourcePath), targetName));
@@ -422,6 +649,12 @@ public class LocalFileManager extends AbstractFileManager {
     @Override
     public FileData actionReadFile(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException {
 
+        ZipPath zipPath = getZipPath(path);
+        if (zipPath != null) {
+            sendZipFile(request, response, zipPath, false);
+            return null;
+        }
+
         File file = getFile(path);
 
         checkPath(file);
@@ -433,10 +666,7 @@ public class LocalFileManager extends AbstractFileManager {
         }
 
         try{
-            MultipartFileSender.fromPath(file.toPath())
-                    .with(request)
-                    .with(response)
-                    .serveResource();
+            fileSender(request, response, file).serveResource();
         } catch (Exception e) {
             throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
         }
@@ -464,7 +694,13 @@ public class LocalFileManager extends AbstractFileManager {
     }
 
     @Override
-    public FileData actionDownload(HttpServletResponse response, String path) throws FileManagerException {
+    public FileData actionDownload(HttpServletRequest request, HttpServletResponse response, String path) throws FileManagerException {
+
+        ZipPath zipPath = getZipPath(path);
+        if (zipPath != null) {
+            sendZipFile(request, response, zipPath, true);
+            return null;
+        }
 
 
         File file = getFile(path);
@@ -488,21 +724,14 @@ public class LocalFileManager extends AbstractFileManager {
         }
 
         try {
-            response.setHeader("Content-Description", "File Transfer");
-            // handle cache
-            response.setHeader("'Pragma: public'", "public");
-            response.setHeader("Expires", "0");
-            response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
-
             if (file.isFile()) {
-                String fileExt = filename.substring(filename.lastIndexOf(".") + 1);
-                String mimeType = (!StringUtils.isEmpty(FileManagerUtils.mimetypes.get(fileExt))) ? FileManagerUtils.mimetypes.get(fileExt) : "application/octet-stream";
-                response.setContentLength((int) file.length());
-                response.setContentType(mimeType);
-                response.setHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"");
-                response.setContentLength((int) file.length());
-
-                FileUtils.copy(new BufferedInputStream(new FileInputStream(file)), response.getOutputStream());
+                // 64-bit lengths, ranges and validators for resumable downloads of large files, kept identity
+                // encoded so that the length is always known
+                fileSender(request, response, file)
+                        .attachment(true)
+                        .compress(false)
+                        .cacheControl("must-revalidate, post-check=0, pre-check=0")
+                        .serveResource();
             } else {
                 String[] files = file.list();
 
@@ -510,22 +739,63 @@ public class LocalFileManager extends AbstractFileManager {
                     throw new FileManagerException(ClientErrorMessage.DIRECTORY_EMPTY);
                 }
 
-                String zipFileName = FileUtils.getBaseName(path.substring(0, path.length() - 1)) + ".zip";
-                String mimType = FileManagerUtils.mimetypes.get("zip");
+                // uncompressed TAR on request, for folders of files which do not compress
+                boolean tar = "tar".equals(request.getParameter("format"));
+                String zipFileName = FileUtils.getBaseName(path.substring(0, path.length() - 1)) + (tar ? ".tar" : ".zip");
+
+                // An unchanged folder is served from its cached archive, with its length and ranges.
+                DiskCache.Lease archive = null;
+                if (ArchiveCache.isEnabled() && !tar) {
+                    try {
+                        archive = ArchiveCache.acquire(file);
+                    } catch (IOException e) {
+                        logger.error("Folder archive failed: " + path, e);
+                        throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+                    }
+                }
+                if (archive != null) {
+                    // the archive is opened before the lease is released
+                    try (DiskCache.Lease lease = archive) {
+                        fileSender(request, response, lease.getPath().toFile())
+                                .fileName(zipFileName)
+                                .attachment(true)
+                                .compress(false)
+                                .sendfile(false)
+                                .cacheControl("must-revalidate, post-check=0, pre-check=0")
+                                .serveResource();
+                    }
+                    return null;
+                }
+
+                response.setHeader("Content-Description", "File Transfer");
+                // handle cache
+                response.setHeader("'Pragma: public'", "public");
+                response.setHeader("Expires", "0");
+                response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
+
+                String mimType = FileManagerUtils.mimetypes.get(tar ? "tar" : "zip");
                 response.setContentType(mimType);
                 response.setHeader("Content-Disposition", "attachment; filename=\"" + zipFileName + "\"");
-                byte[] zipFileByteArray;
-                try {
-                    zipFileByteArray = ZipUtils.zipFolder(file);
+
+                // The archive is streamed as it is built, its length is unknown (chunked transfer).
+                try (OutputStream out = response.getOutputStream()) {
+                    ArchiveStats stats = tar
+                            ? ZipUtils.writeArchive(Collections.singletonMap(file.getName(), file), new TarWriter(out), out)
+                            : ZipUtils.zipFolder(file, out);
+                    logger.info("Folder download " + path + ": " + stats);
                 } catch (IOException e) {
+                    if (response.isCommitted()) {
+                        // too late for an error response, the client gets a truncated archive
+                        logger.error("Folder download aborted: " + path, e);
+                        return null;
+                    }
                     throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
                 }
-                response.setContentLength(zipFileByteArray.length);
-
-                FileUtils.copy(new ByteArrayInputStream(zipFileByteArray), response.getOutputStream());
             }
 
-        } catch (IOException e) {
+        } catch (FileManagerException e) {
+            throw e;
+        } catch (Exception e) {
             throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
         }
 
@@ -533,6 +803,83 @@ public class LocalFileManager extends AbstractFileManager {
 
     }
 
+    @Override
+    public FileData actionDownload(HttpServletRequest request, HttpServletResponse response, List<String> paths, String format) throws FileManagerException {
+
+        boolean tar = "tar".equals(format);
+        if (!tar && format != null && !"zip".equals(format)) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_ACTION);
+        }
+
+        // the whole selection is checked before the first byte is sent, nested selections are dropped
+        TreeSet<String> selection = new TreeSet<>();
+        for (String path : paths) {
+            if (StringUtils.isEmpty(path)) continue;
+            File file = getFile(path);
+
+            checkPath(file);
+            checkReadPermission(file);
+            checkRestrictions(file);
+
+            if (file.equals(docRoot)) {
+                throw new FileManagerException(ClientErrorMessage.NOT_ALLOWED);
+            }
+            if (file.isDirectory() && !Boolean.parseBoolean(propertiesConfig.getProperty("allowFolderDownload"))) {
+                throw new FileManagerException(ClientErrorMessage.NOT_ALLOWED);
+            }
+            selection.add(getRelativePath(file).replace(File.separatorChar, '/'));
+        }
+        String previous = null;
+        for (Iterator<String> iterator = selection.iterator(); iterator.hasNext(); ) {
+            String path = iterator.next();
+            if (previous != null && path.startsWith(previous + "/")) {
+                iterator.remove();
+            } else {
+                previous = path;
+            }
+        }
+        if (selection.isEmpty()) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_ACTION);
+        }
+
+        // the files keep their paths below the folder common to the selection
+        String parent = selection.first().substring(0, selection.first().lastIndexOf('/') + 1);
+        for (String path : selection) {
+            while (!path.startsWith(parent)) {
+                parent = parent.substring(0, parent.lastIndexOf('/', parent.length() - 2) + 1);
+            }
+        }
+        Map<String, File> files = new LinkedHashMap<>();
+        for (String path : selection) {
+            files.put(path.substring(parent.length()), getFile(path));
+        }
+
+        String extension = tar ? "tar" : "zip";
+        String archiveName = (files.size() == 1 ? files.keySet().iterator().next() : "download") + "." + extension;
+
+        response.setHeader("Content-Description", "File Transfer");
+        response.setHeader("Expires", "0");
+        response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
+        response.setContentType(FileManagerUtils.mimetypes.get(extension));
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + archiveName + "\"");
+
+        // streamed as it is built, its length is unknown (chunked transfer)
+        try (OutputStream out = response.getOutputStream()) {
+            ArchiveWriter writer = tar ? new TarWriter(out) : new ZipStreamWriter(out);
+            ArchiveStats stats = ZipUtils.writeArchive(files, writer, out);
+            logger.info("Download of " + files.size() + " files and folders in " + archiveName + ": " + stats);
+        } catch (IOException e) {
+            if (response.isCommitted()) {
+                // too late for an error response, the client gets a truncated archive
+                logger.error("Download aborted: " + selection, e);
+                return null;
+            }
+            throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
+        }
+
+        return null;
+    }
+
 
     @Override
     public List<FileData> actionUpload(HttpServletRequest request, String path) throws FileManagerException {
@@ -548,9 +895,20 @@ public class LocalFileManager extends AbstractFileManager {
     }
 
     private ArrayList<FileData>  uploadFiles(HttpServletRequest request, String targetDirectory) throws FileManagerException {
+        // parts the container already stored (multipart configuration) are moved into place, otherwise the body is
+        // streamed to the files
+        Collection<Part> parts;
+        try {
+            parts = request.getParts();
+        } catch (IllegalStateException e) {
+            return streamFiles(request, targetDirectory);
+        } catch (IOException|ServletException e) {
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
+        }
+
         ArrayList<FileData> array = new ArrayList<>();
         try {
-            for (Part uploadedFile : request.getParts()) {
+            for (Part uploadedFile : parts) {
 
                 if (uploadedFile.getContentType() == null) {
                     continue;
@@ -560,34 +918,218 @@ public class LocalFileManager extends AbstractFileManager {
                     throw new FileManagerException(ClientErrorMessage.FILE_EMPTY);
                 }
 
-                String submittedFileName = uploadedFile.getSubmittedFileName();
-                String filename = normalizeName(FileUtils.getBaseName(submittedFileName)) + '.' + FileUtils.getExtension(submittedFileName);
+                String filename = getUploadName(uploadedFile.getSubmittedFileName());
 
                 checkRestrictions(new File(targetDirectory + "/" + filename));
-                Long uploadFileSizeLimit = 0L;
-                String uploadFileSizeLimitString = propertiesConfig.getProperty("upload.fileSizeLimit");
+
+                // a chunk of a larger file, the limit applies to the whole file
+                long[] contentRange = HttpUtils.parseContentRange(request.getHeader("Content-Range"));
+                checkUploadSize(contentRange != null ? contentRange[2] : uploadedFile.getSize());
+
+                String uploadedPath = getFile(targetDirectory).getAbsolutePath() + "/" + filename;
+
+                if (contentRange != null) {
+                    try (InputStream in = uploadedFile.getInputStream()) {
+                        array.add(uploadChunk(request, in, uploadedFile.getSize(), contentRange, targetDirectory + filename, uploadedPath));
+                    }
+                    continue;
+                }
+
+                // a rename of the file stored by the container when it is on the same file system
+                Path target = Paths.get(uploadedPath);
+                Path temporary = AtomicFiles.createTemporary(target);
                 try {
-                    uploadFileSizeLimit = Long.parseLong(uploadFileSizeLimitString);
-                } catch (NumberFormatException e) {
-                    logger.error("Wrong format for the property: 'upload.fileSizeLimit");
-                    throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+                    uploadedFile.write(temporary.toString());
+                    AtomicFiles.publish(temporary, target);
+                } finally {
+                    Files.deleteIfExists(temporary);
                 }
+                invalidateCaches(target);
+                array.add(getFileInfo(targetDirectory + filename));
+            }
+        } catch (IOException e){
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
+        }
+        return array;
+    }
 
-                if (uploadedFile.getSize() > uploadFileSizeLimit) {
-                    throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(uploadFileSizeLimit, true))));
+    /**
+     * Upload the files of a multipart request the container did not parse, as they are read: each file is written
+     * once, to a temporary file next to its target, and a file over the size limit is stopped as soon as it reaches
+     * the limit. The mode and path parameters must then be in the query string.
+     */
+    private ArrayList<FileData> streamFiles(HttpServletRequest request, String targetDirectory) throws FileManagerException {
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_FILE_UPLOAD);
+        }
+
+        long[] contentRange = HttpUtils.parseContentRange(request.getHeader("Content-Range"));
+        ServletFileUpload upload = new ServletFileUpload();
+        upload.setFileSizeMax(getUploadSizeLimit());
+
+        ArrayList<FileData> array = new ArrayList<>();
+        try {
+            FileItemIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField() || StringUtils.isEmpty(item.getName())) {
+                    continue;
                 }
 
+                String filename = getUploadName(item.getName());
+                checkRestrictions(new File(targetDirectory + "/" + filename));
                 String uploadedPath = getFile(targetDirectory).getAbsolutePath() + "/" + filename;
 
-                Files.copy(new BufferedInputStream(uploadedFile.getInputStream()), Paths.get(uploadedPath), StandardCopyOption.REPLACE_EXISTING);
-                array.add(getFileInfo(targetDirectory + filename));
+                try (InputStream in = item.openStream()) {
+                    if (contentRange != null) {
+                        checkUploadSize(contentRange[2]);
+                        array.add(uploadChunk(request, in, -1, contentRange, targetDirectory + filename, uploadedPath));
+                        continue;
+                    }
+
+                    Path target = Paths.get(uploadedPath);
+                    Path temporary = AtomicFiles.createTemporary(target);
+                    try {
+                        if (Files.copy(in, temporary) == 0) {
+                            throw new FileManagerException(ClientErrorMessage.FILE_EMPTY);
+                        }
+                        AtomicFiles.publish(temporary, target);
+                    } finally {
+                        Files.deleteIfExists(temporary);
+                    }
+                    invalidateCaches(target);
+                    array.add(getFileInfo(targetDirectory + filename));
+                }
             }
-        } catch (IOException|ServletException e){
+        } catch (FileUploadBase.FileUploadIOException e) {
+            if (e.getCause() instanceof FileUploadBase.FileSizeLimitExceededException) {
+                throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(getUploadSizeLimit(), true))));
+            }
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
+        } catch (IOException|FileUploadException e) {
             throw new FileManagerException(ClientErrorMessage.FORBIDDEN_ACTION_DIR);
         }
         return array;
     }
 
+    /**
+     * Write a chunk of a file at its offset, then move the file into place once all its chunks are received.
+     *
+     * @param chunkSize the size of the chunk part, -1 if unknown
+     * @return the file once complete, before that its attributes with the number of bytes received as size
+     */
+    private FileData uploadChunk(HttpServletRequest request, InputStream in, long chunkSize, long[] contentRange, String path, String uploadedPath) throws FileManagerException, IOException {
+        long start = contentRange[0];
+        long count = contentRange[1] - contentRange[0] + 1;
+        if (chunkSize >= 0 && chunkSize != count) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_FILE_UPLOAD);
+        }
+
+        UploadSessions.Session session;
+        try {
+            session = UploadSessions.open(getUploadId(request.getParameter("uploadId"), uploadedPath, contentRange[2]), contentRange[2], getUploadDir());
+        } catch (IOException e) {
+            logger.error("Chunked upload failed: " + path, e);
+            throw new FileManagerException(ClientErrorMessage.ERROR_UPLOADING_FILE);
+        }
+        session.write(start, count, in);
+        if (chunkSize < 0 && in.read() >= 0) {
+            // larger than its range
+            throw new FileManagerException(ClientErrorMessage.INVALID_FILE_UPLOAD);
+        }
+
+        if (!session.isComplete()) {
+            return getUploadStatus(path, session.getContiguous());
+        }
+        Path target = Paths.get(uploadedPath);
+        session.complete(target);
+        invalidateCaches(target);
+        return getFileInfo(path);
+    }
+
+    @Override
+    public FileData actionUploadStatus(String path, long size, String uploadId) throws FileManagerException {
+
+        String targetDirectory = path.substring(0, path.lastIndexOf("/") + 1);
+        String filename = getUploadName(path.substring(targetDirectory.length()));
+        File targetDirectoryFile = getFile(targetDirectory);
+
+        checkPath(targetDirectoryFile);
+        checkWritePermission(targetDirectoryFile);
+        checkRestrictions(new File(targetDirectory + "/" + filename));
+
+        String uploadedPath = targetDirectoryFile.getAbsolutePath() + "/" + filename;
+        String id = getUploadId(uploadId, uploadedPath, size);
+        try {
+            UploadSessions.Session session = UploadSessions.find(id, getUploadDir());
+            if (session != null) {
+                return getUploadStatus(targetDirectory + filename, session.getContiguous());
+            }
+            // complete already, e.g. the response to the last chunk was lost
+            return getUploadStatus(targetDirectory + filename, UploadSessions.isCompleted(id, Paths.get(uploadedPath), getUploadDir()) ? size : 0);
+        } catch (IOException e) {
+            throw new FileManagerException(ClientErrorMessage.ERROR_UPLOADING_FILE);
+        }
+    }
+
+    /**
+     * @param received the number of bytes received from the start of the file, where the upload resumes
+     * @return the attributes of a file being uploaded, the bytes received as size
+     */
+    private FileData getUploadStatus(String path, long received) {
+        FileData fileData = new FileData();
+        fileData.setId(path);
+        fileData.setType(FileType.file);
+        FileAttributes fileAttributes = new FileAttributes();
+        fileAttributes.setName(path.substring(path.lastIndexOf("/") + 1));
+        fileAttributes.setPath(getDynamicPath(path));
+        fileAttributes.setSize(received);
+        fileData.setAttributes(fileAttributes);
+        return fileData;
+    }
+
+    /**
+     * @return the default directory of the chunked uploads: a hidden folder of the root, on the file system of the
+     * uploaded files, so a complete file is moved into place rather than copied
+     */
+    private Path getUploadDir() {
+        return new File(docRoot, UPLOAD_DIR_NAME).toPath();
+    }
+
+    /**
+     * @param uploadId the id chosen by the client, or null to derive it from the uploaded file
+     */
+    private static String getUploadId(String uploadId, String uploadedPath, long size) throws FileManagerException {
+        if (StringUtils.isEmpty(uploadId)) {
+            return UploadSessions.getId(uploadedPath, size);
+        }
+        if (!UploadSessions.isValidId(uploadId)) {
+            throw new FileManagerException(ClientErrorMessage.INVALID_VAR, Collections.singletonList("uploadId"));
+        }
+        return uploadId;
+    }
+
+    private String getUploadName(String submittedFileName) {
+        return normalizeName(FileUtils.getBaseName(submittedFileName)) + '.' + FileUtils.getExtension(submittedFileName);
+    }
+
+    private long getUploadSizeLimit() throws FileManagerException {
+        String uploadFileSizeLimitString = propertiesConfig.getProperty("upload.fileSizeLimit");
+        try {
+            return Long.parseLong(uploadFileSizeLimitString);
+        } catch (NumberFormatException e) {
+            logger.error("Wrong format for the property: 'upload.fileSizeLimit");
+            throw new FileManagerException(ClientErrorMessage.ERROR_SERVER);
+        }
+    }
+
+    private void checkUploadSize(long size) throws FileManagerException {
+        long uploadFileSizeLimit = getUploadSizeLimit();
+        if (size > uploadFileSizeLimit) {
+            throw new FileManagerException(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, Collections.singletonList(String.valueOf(FileUtils.humanReadableByteCount(uploadFileSizeLimit, true))));
+        }
+    }
+
     @Override
     public FileData actionSaveFile(String pathParam, String contentParam) throws FileManagerException {
 
@@ -602,9 +1144,9 @@ public class LocalFileManager extends AbstractFileManager {
         }
 
         try {
-            FileOutputStream oldFile = new FileOutputStream(file, false);
-            oldFile.write(contentParam.getBytes());
-            oldFile.close();
+            // replaced at once: a concurrent readfile or download gets the old or the new content
+            AtomicFiles.write(file.toPath(), contentParam.getBytes());
+            invalidateCaches(file.toPath());
         } catch (IOException e) {
             throw new FileManagerException(ClientErrorMessage.ERROR_SAVING_FILE);
         }
@@ -653,7 +1195,8 @@ public class LocalFileManager extends AbstractFileManager {
                 FileUtils.copyDirectory(sourceFile.toPath(), targetFile.toPath());
             } else {
                 // TO DO : copy thumbnail
-                Files.copy(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                AtomicFiles.copy(sourceFile.toPath(), targetFile.toPath());
+                invalidateCaches(targetFile.toPath());
             }
 
         } catch (IOException e) {
@@ -669,7 +1212,7 @@ public class LocalFileManager extends AbstractFileManager {
     }
 
     @Override
-    public List<FileData> actionExtract(String sourcePath, String targetPath) throws FileManagerException {
+    public List<FileData> actionExtract(String sourcePath, String targetPath, List<String> selection) throws FileManagerException {
 
         File sourceFile = getFile(sourcePath);
         File targetDirFile = getFile(targetPath);
@@ -690,52 +1233,51 @@ public class LocalFileManager extends AbstractFileManager {
         checkRestrictions(targetDirFile);
 
         List<FileData> fileDataList = new ArrayList<>();
-        List<String> levelOneFiles = new ArrayList<>();
 
         try {
-
-            byte[] buffer = new byte[1024];
-            ZipInputStream zis = new ZipInputStream(new FileInputStream(sourceFile));
-            ZipEntry zipEntry = zis.getNextEntry();
-            while(zipEntry != null){
-                String fileName = zipEntry.getName();
-                File newFile = new File(targetDirFile.getAbsolutePath() + "/" + fileName);
-                if(isMatchRestriction(newFile)){
-
-                    newFile.getParentFile().mkdirs();
-                    if (!zipEntry.isDirectory() && !FileUtils.getBaseName(fileName).startsWith(".")) {
-
-                        if(newFile.exists() || newFile.isDirectory()){
-                            newFile.delete();
-                        }
-                        newFile.createNewFile();
-                        FileOutputStream fos = new FileOutputStream(newFile);
-                        int len;
-                        while ((len = zis.read(buffer)) > 0) {
-                            fos.write(buffer, 0, len);
-                        }
-                        fos.close();
-
-                    } else if(zipEntry.isDirectory()){
-                        newFile.mkdir();
+            List<ZipEntry> entries = new ZipExtractor(sourceFile, targetDirFile).select(selection).extract(new ZipExtractor.Filter() {
+                @Override
+                public boolean accept(ZipEntry entry, File target) throws IOException {
+                    // hidden files are skipped, their folders are still created
+                    try {
+                        return isMatchRestriction(target)
+                                && (entry.isDirectory() || !FileUtils.getBaseName(entry.getName()).startsWith("."));
+                    } catch (FileManagerException e) {
+                        throw new IOException(e);
                     }
+                }
+            });
 
-                    if(!FileUtils.getBaseName(fileName).startsWith(".")) {
-                        int count = fileName.length() - fileName.replace("/", "").length();
-                        if(count < 1 || (count == 1 && fileName.endsWith("/")) ) {
-                            String path = getRelativePath(newFile);
-                            if(zipEntry.isDirectory()){
-                                path += "/";
-                            }
-                            fileDataList.add(getFileInfo(path));
-                        }
+            // report the first level of what was extracted, folders included when only their content was
+            Set<String> firstLevel = new LinkedHashSet<>();
+            for (ZipEntry zipEntry : entries) {
+                String fileName = zipEntry.getName();
+                int slash = fileName.indexOf('/');
+                firstLevel.add(slash < 0 ? fileName : fileName.substring(0, slash + 1));
+            }
+            for (String fileName : firstLevel) {
+                if(!FileUtils.getBaseName(fileName).startsWith(".")) {
+                    String path = getRelativePath(new File(targetDirFile, fileName));
+                    if(fileName.endsWith("/")){
+                        path += "/";
                     }
+                    fileDataList.add(getFileInfo(path));
                 }
-                zipEntry = zis.getNextEntry();
             }
-            zis.closeEntry();
-            zis.close();
+        } catch (FileNotFoundException e) {
+            throw new FileManagerException(ClientErrorMessage.FILE_DOES_NOT_EXIST, Collections.singletonList(e.getMessage()));
+        } catch (FileAlreadyExistsException e) {
+            throw new FileManagerException(ClientErrorMessage.DIRECTORY_ALREADY_EXISTS, Collections.singletonList(getRelativePath(new File(e.getFile()))));
+        } catch (ZipExtractor.LimitException e) {
+            logger.warn("Extraction of " + sourcePath + " stopped: " + e.getMessage());
+            throw new FileManagerException(ClientErrorMessage.STORAGE_SIZE_EXCEED);
+        } catch (ZipExtractor.UnsafeEntryException e) {
+            logger.warn("Extraction of " + sourcePath + " rejected: " + e.getMessage());
+            throw new FileManagerException(ClientErrorMessage.FORBIDDEN_NAME);
         } catch (IOException e) {
+            if (e.getCause() instanceof FileManagerException) {
+                throw (FileManagerException) e.getCause();
+            }
             throw new FileManagerException(ClientErrorMessage.ERROR_CREATING_ZIP);
         }
 
@@ -842,6 +1384,15 @@ public class LocalFileManager extends AbstractFileManager {
         return fileRoot + path;
     }
 
+    /**
+     * Drop the cached channel and content of a file which was written, moved or deleted.
+     */
+    private static void invalidateCaches(Path path) {
+        FileChannelCache.invalidate(path);
+        FileContentCache.invalidate(path);
+        ZipIndexCache.invalidate(path);
+    }
+
     private File getFile(String path) {
         return new File(docRoot.getPath() + path);
     }
@@ -900,7 +1451,16 @@ public class LocalFileManager extends AbstractFileManager {
 
             BufferedImage source = ImageIO.read(originalFile);
             BufferedImage resizedImage = generateThumbnail(source);
-            ImageIO.write(resizedImage, ext, thumbnailFile);
+            // a thumbnail is never listed half written, nor left truncated by a failure
+            Path temporary = AtomicFiles.createTemporary(thumbnailFile.toPath());
+            try {
+                if (!ImageIO.write(resizedImage, ext, temporary.toFile())) {
+                    throw new IOException("No image writer for " + ext);
+                }
+                AtomicFiles.publish(temporary, thumbnailFile.toPath());
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
         } catch (IOException e) {
             logger.error("Error during thumbnail generation - ext: " + ext + " name: " + originalFile.getName(), e);
             return null;
@@ -0,0 +1,154 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Disk cache of the ZIP archives of downloaded folders.
+ * <p>
+ * An archive is identified by the fingerprint of its folder: the relative path, size and modification time of every
+ * entry archived, so any change in the tree gives a new archive while the old one ages out. Archives are built once
+ * even when the same folder is requested concurrently, into {@code zip.cache.dir} which holds at most
+ * {@code zip.cache.maxBytes}. Folders of more than {@code zip.cache.maxFileSize} bytes are streamed as before.
+ * Disabled unless {@code zip.cache.enabled} is set.
+ */
+public class ArchiveCache {
+
+    private static final long DEFAULT_MAX_FILE_SIZE = 536870912; // ..bytes = 512MB.
+    private static final long DEFAULT_MAX_BYTES = 2147483648L; // ..bytes = 2GB.
+
+    private static volatile boolean enabled = false;
+    private static volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    // null for a directory of this instance, shared directories would have their entries deleted by each other
+    private static volatile Path dir;
+
+    private static DiskCache cache;
+    private static Path instanceDir;
+
+    public static void configure(Properties properties) {
+        enabled = Boolean.parseBoolean(properties.getProperty("zip.cache.enabled"));
+        maxFileSize = parseLong(properties.getProperty("zip.cache.maxFileSize"), DEFAULT_MAX_FILE_SIZE);
+        maxBytes = parseLong(properties.getProperty("zip.cache.maxBytes"), DEFAULT_MAX_BYTES);
+        String cacheDir = properties.getProperty("zip.cache.dir");
+        dir = StringUtils.isEmpty(cacheDir) ? null : Paths.get(cacheDir);
+        synchronized (ArchiveCache.class) {
+            if (cache != null && !cache.getDirectory().equals(dir != null ? dir : instanceDir)) {
+                cache = null;
+            }
+            if (cache != null) {
+                cache.setMaxBytes(maxBytes);
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the archive of the given folder, building it if the folder changed since it was last archived. The archive
+     * is not evicted until the lease is closed, the caller opens it meanwhile.
+     *
+     * @return the lease of the archive, or null if the folder is too large to be cached
+     */
+    public static DiskCache.Lease acquire(final File folder) throws IOException {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(folder, folder.getName());
+        if (fingerprint.totalBytes > maxFileSize || fingerprint.totalBytes > maxBytes) {
+            return null;
+        }
+
+        String key = folder.getAbsolutePath() + "\n" + ZipStreamWriter.getConfiguration() + "\n" + fingerprint.hash();
+        return getCache().acquire(key, new DiskCache.Producer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                ZipUtils.zipFolder(folder, out);
+            }
+        });
+    }
+
+    /**
+     * Delete the directory created for this instance, if any, with the entries cached in it.
+     */
+    public static synchronized void shutdown() {
+        cache = null;
+        if (instanceDir != null) {
+            try {
+                DiskCache.deleteDirectory(instanceDir);
+            } catch (IOException ignore) {}
+            instanceDir = null;
+        }
+    }
+
+    private static synchronized DiskCache getCache() throws IOException {
+        if (cache == null) {
+            Path cacheDir = dir;
+            if (cacheDir == null) {
+                if (instanceDir == null) {
+                    instanceDir = Files.createTempDirectory("filemanager-zip");
+                }
+                cacheDir = instanceDir;
+            }
+            cache = new DiskCache(cacheDir, maxBytes);
+        }
+        return cache;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * SHA-1 of the entries of a folder as {@link ZipUtils} archives them, whatever the order of the listing.
+     */
+    private static class Fingerprint {
+        private final MessageDigest digest = StringUtils.sha1();
+        private long totalBytes = 0;
+
+        void add(File file, String name) throws IOException {
+            if (file.isHidden()) {
+                return;
+            }
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                if (children == null) {
+                    throw new IOException("Can not list " + file);
+                }
+                Arrays.sort(children);
+                update(name + "/\n");
+                for (File child : children) {
+                    add(child, name + "/" + child.getName());
+                }
+                return;
+            }
+            long size = file.length();
+            totalBytes += size;
+            update(name + '\0' + size + '\0' + file.lastModified() + '\n');
+        }
+
+        private void update(String entry) {
+            digest.update(entry.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return the hex hash of the entries added, once
+         */
+        String hash() {
+            return StringUtils.toHex(digest.digest());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.fabriceci.fmc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of an archive being written: entries, bytes saved by compression and CPU time spent on it by all the
+ * threads involved.
+ */
+public class ArchiveStats {
+
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private int entries;
+    private int storedEntries;
+    private long rawBytes;
+    private long archiveBytes;
+
+    void addEntry(boolean stored, long size) {
+        entries++;
+        if (stored) storedEntries++;
+        rawBytes += size;
+    }
+
+    void addCpuTime(long nanos) {
+        cpuNanos.addAndGet(nanos);
+    }
+
+    void setArchiveBytes(long archiveBytes) {
+        this.archiveBytes = archiveBytes;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public int getStoredEntries() {
+        return storedEntries;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getArchiveBytes() {
+        return archiveBytes;
+    }
+
+    /**
+     * @return the size of the files less the size of the archive, headers included
+     */
+    public long getSavedBytes() {
+        return rawBytes - archiveBytes;
+    }
+
+    public long getCpuMillis() {
+        return cpuNanos.get() / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return entries + " entries (" + storedEntries + " stored), " + rawBytes + " bytes in " + archiveBytes
+                + " bytes, " + getSavedBytes() + " bytes saved, " + getCpuMillis() + " ms CPU";
+    }
+}
@@ -0,0 +1,32 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes an archive to a stream, file by file.
+ */
+public interface ArchiveWriter {
+
+    /**
+     * Add a file to the archive. The file must not be modified until the archive is finished.
+     *
+     * @param name the path of the file in the archive, "/" separated
+     */
+    void addFile(String name, File file) throws IOException;
+
+    /**
+     * Write the end of the archive, once all the files are added. The stream is neither flushed nor closed.
+     */
+    void finish() throws IOException;
+
+    /**
+     * Release the resources of an archive which will not be finished, after an error.
+     */
+    void abort();
+
+    /**
+     * @return the statistics of the archive, complete once it is finished
+     */
+    ArchiveStats getStats();
+}
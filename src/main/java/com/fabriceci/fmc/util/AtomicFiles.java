@@ -0,0 +1,176 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Writes files so that they are replaced all at once.
+ * <p>
+ * The content is written to a hidden temporary file next to the target, synced to the disk according to
+ * {@code write.fsync}, then renamed over the target. Readers see the old file or the new one, never a part of it: a
+ * reader which opened the old file keeps reading it, and the caches keyed by {@link FileStamp} see a new inode. A
+ * crash leaves at worst a temporary file, never a truncated target.
+ * <ul>
+ * <li>{@code none}: no sync, a crash may lose the content written in the last seconds</li>
+ * <li>{@code file}: the file is synced before the rename, a crash leaves the old or the new content</li>
+ * <li>{@code full}: the directory is synced after the rename as well, the new file survives a crash once written</li>
+ * </ul>
+ */
+public class AtomicFiles {
+
+    private enum Policy {NONE, FILE, FULL}
+
+    private static final Random random = new Random();
+
+    private static volatile Policy policy = Policy.FILE;
+
+    public static void configure(Properties properties) {
+        String value = properties.getProperty("write.fsync");
+        Policy configured = Policy.FILE;
+        if (!StringUtils.isEmpty(value)) {
+            try {
+                configured = Policy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ignore) {}
+        }
+        policy = configured;
+    }
+
+    /**
+     * @return a file next to the target, hidden and not existing yet, to write it before it is published
+     */
+    public static Path createTemporary(Path target) {
+        long id;
+        synchronized (random) {
+            id = random.nextLong() & Long.MAX_VALUE;
+        }
+        return target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(id) + ".tmp");
+    }
+
+    /**
+     * Move a complete file over the target, synced according to the policy. The temporary file is moved, or copied
+     * next to the target first when it is on another file system; the caller deletes it if this fails.
+     *
+     * @param temporary the new content, preferably from {@link #createTemporary(Path)}
+     * @param target the file to create or replace
+     */
+    public static void publish(Path temporary, Path target) throws IOException {
+        sync(temporary);
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            // another file system: copied next to the target first, so the target appears complete
+            Path copy = createTemporary(target);
+            try {
+                Files.copy(temporary, copy);
+                publish(copy, target);
+            } finally {
+                Files.deleteIfExists(copy);
+            }
+            Files.delete(temporary);
+            return;
+        }
+        if (policy == Policy.FULL) {
+            syncDirectory(target.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * Create or replace a file with the given content. A replaced file keeps its permissions.
+     */
+    public static void write(Path target, byte[] content) throws IOException {
+        Path temporary = createTemporary(target);
+        try {
+            Files.write(temporary, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            copyPermissions(target, temporary);
+            publish(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Copy a file, creating or replacing the target.
+     */
+    public static void copy(Path source, Path target) throws IOException {
+        Path temporary = createTemporary(target);
+        try {
+            Files.copy(source, temporary);
+            publish(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Copy a file like {@link #copy(Path, Path)}, but never over an existing target, even one created meanwhile.
+     *
+     * @throws FileAlreadyExistsException if the target exists
+     */
+    public static void copyNew(Path source, Path target) throws IOException {
+        Path temporary = createTemporary(target);
+        try {
+            Files.copy(source, temporary);
+            sync(temporary);
+            try {
+                // unlike a rename, a link is only created where no file exists
+                Files.createLink(target, temporary);
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (IOException | UnsupportedOperationException e) {
+                // no hard links on this file system
+                if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                    throw new FileAlreadyExistsException(target.toString());
+                }
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            if (policy == Policy.FULL) {
+                syncDirectory(target.toAbsolutePath().getParent());
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void sync(Path file) throws IOException {
+        if (policy != Policy.NONE) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(from);
+            Files.setPosixFilePermissions(to, permissions);
+        } catch (UnsupportedOperationException ignore) {
+            // not a POSIX file system
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignore) {
+            // directories can not be opened on every platform, the rename is then as durable as it gets
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.fabriceci.fmc.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Token-bucket bandwidth shaping of the active transfers.
+ * <p>
+ * The global limit ({@code bandwidth.global}) is shared between all the active transfers and the per-client limit
+ * ({@code bandwidth.perClient}) between the transfers of a client, in proportion to the weight of each transfer
+ * (e.g. {@code bandwidth.weight.readfile}), so interactive requests keep a larger share than bulk downloads. The
+ * shares are computed again each time a transfer starts or ends. Limits are in bytes per second, 0 means unlimited.
+ * <p>
+ * Each transfer has its own bucket: {@link Transfer#acquire(int)} takes tokens from it and sleeps when the
+ * transfer is ahead of its rate. While a limit is configured, the measured rates ({@link #getCurrentRates()}), the
+ * number of active transfers and the limits are published for monitoring as the {@value #MBEAN_NAME} MXBean of the
+ * platform MBean server (JConsole, VisualVM, JMX exporters). The bean is withdrawn by {@link #unregister()} when the
+ * web application stops.
+ */
+public class BandwidthLimiter {
+
+    private static final long BURST_NANOS = 250000000L; // ..nanoseconds = 250ms.
+    private static final int MIN_BURST = 16384; // ..bytes = 16KB.
+    private static final long WINDOW_NANOS = 1000000000L; // ..nanoseconds = 1s.
+    public static final String MBEAN_NAME = "com.fabriceci.fmc:type=BandwidthLimiter";
+
+    private static volatile long globalLimit = 0;
+    private static volatile long clientLimit = 0;
+    private static volatile Map<String, Integer> weights = new HashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(BandwidthLimiter.class);
+
+    private static final List<Transfer> transfers = new ArrayList<>();
+    // the registered monitoring bean, null if none; guarded by the class
+    private static Monitor monitor;
+
+    public static void configure(Properties properties) {
+        long global = parseLong(properties.getProperty("bandwidth.global"), 0);
+        long client = parseLong(properties.getProperty("bandwidth.perClient"), 0);
+        Map<String, Integer> configured = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("bandwidth.weight.")) {
+                configured.put(name.substring("bandwidth.weight.".length()), (int) parseLong(properties.getProperty(name), 1));
+            }
+        }
+        synchronized (transfers) {
+            if (!configured.equals(weights)) {
+                weights = configured;
+            }
+            // the active transfers get their new share at once
+            if (global != globalLimit || client != clientLimit) {
+                globalLimit = global;
+                clientLimit = client;
+                allocate();
+            }
+        }
+        register(isEnabled());
+    }
+
+    /**
+     * @return true if a global or a per-client limit is configured
+     */
+    public static boolean isEnabled() {
+        return globalLimit > 0 || clientLimit > 0;
+    }
+
+    /**
+     * @return the configured weight of a kind of transfer (e.g. a mode), 1 by default
+     */
+    public static int getWeight(String kind) {
+        Integer weight = weights.get(kind);
+        return weight != null && weight > 0 ? weight : 1;
+    }
+
+    /**
+     * Register a new active transfer, which must be closed once done.
+     *
+     * @param client identifies the client, e.g. its address
+     * @param weight the share of the transfer relative to the other active transfers
+     */
+    public static Transfer open(String client, int weight) {
+        Transfer transfer = new Transfer(client, Math.max(1, weight));
+        synchronized (transfers) {
+            transfers.add(transfer);
+            allocate();
+        }
+        return transfer;
+    }
+
+    /**
+     * @return the measured rate (bytes per second) of the active transfers, by client
+     */
+    public static Map<String, Long> getCurrentRates() {
+        Map<String, Long> rates = new HashMap<>();
+        long now = System.nanoTime();
+        synchronized (transfers) {
+            for (Transfer transfer : transfers) {
+                Long rate = rates.get(transfer.client);
+                rates.put(transfer.client, (rate != null ? rate : 0) + transfer.getRate(now));
+            }
+        }
+        return rates;
+    }
+
+    /**
+     * @return the number of active transfers
+     */
+    public static int getActiveTransfers() {
+        synchronized (transfers) {
+            return transfers.size();
+        }
+    }
+
+    /**
+     * Publish the monitoring MXBean when the limiter is enabled, or withdraw it when it is not anymore.
+     */
+    private static synchronized void register(boolean enabled) {
+        if (!enabled) {
+            unregister();
+            return;
+        }
+        if (monitor != null) {
+            return;
+        }
+        Monitor bean = new Monitor();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(MBEAN_NAME));
+            monitor = bean;
+        } catch (JMException | SecurityException e) {
+            // monitoring is optional, the limits apply without it
+            logger.warn("Bandwidth monitoring not published as " + MBEAN_NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Withdraw the monitoring MXBean, which would otherwise keep the classes of a stopped web application loaded.
+     */
+    public static synchronized void unregister() {
+        if (monitor == null) {
+            return;
+        }
+        monitor = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+        } catch (JMException | SecurityException e) {
+            logger.warn("Bandwidth monitoring not withdrawn: " + e);
+        }
+    }
+
+    /**
+     * The monitoring view of the limiter.
+     */
+    public interface MonitorMXBean {
+        /**
+         * @return the measured rate (bytes per second) of the active transfers, by client
+         */
+        Map<String, Long> getCurrentRates();
+
+        long getTotalRate();
+
+        int getActiveTransfers();
+
+        long getGlobalLimit();
+
+        long getClientLimit();
+    }
+
+    private static class Monitor implements MonitorMXBean {
+        @Override
+        public Map<String, Long> getCurrentRates() {
+            return BandwidthLimiter.getCurrentRates();
+        }
+
+        @Override
+        public long getTotalRate() {
+            long total = 0;
+            for (long rate : BandwidthLimiter.getCurrentRates().values()) {
+                total += rate;
+            }
+            return total;
+        }
+
+        @Override
+        public int getActiveTransfers() {
+            return BandwidthLimiter.getActiveTransfers();
+        }
+
+        @Override
+        public long getGlobalLimit() {
+            return globalLimit;
+        }
+
+        @Override
+        public long getClientLimit() {
+            return clientLimit;
+        }
+    }
+
+    /**
+     * Split the limits between the active transfers, called with the lock held.
+     */
+    private static void allocate() {
+        long totalWeight = 0;
+        Map<String, Long> clientWeights = new HashMap<>();
+        for (Transfer transfer : transfers) {
+            totalWeight += transfer.weight;
+            Long weight = clientWeights.get(transfer.client);
+            clientWeights.put(transfer.client, (weight != null ? weight : 0) + transfer.weight);
+        }
+
+        for (Transfer transfer : transfers) {
+            double rate = 0;
+            if (globalLimit > 0) {
+                rate = (double) globalLimit * transfer.weight / totalWeight;
+            }
+            if (clientLimit > 0) {
+                double clientRate = (double) clientLimit * transfer.weight / clientWeights.get(transfer.client);
+                rate = rate > 0 ? Math.min(rate, clientRate) : clientRate;
+            }
+            transfer.setRate(rate);
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * An active transfer and its token bucket.
+     */
+    public static class Transfer implements Closeable {
+        private final String client;
+        private final int weight;
+
+        private double rate; // ..bytes per second, 0 for unlimited.
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        private long windowStart = refilledAt;
+        private long windowBytes;
+        private long lastRate;
+
+        private Transfer(String client, int weight) {
+            this.client = client;
+            this.weight = weight;
+        }
+
+        private synchronized void setRate(double rate) {
+            refill(System.nanoTime());
+            this.rate = rate;
+            tokens = Math.min(tokens, getBurst());
+        }
+
+        /**
+         * Take the given number of bytes from the bucket, waiting until the transfer is allowed to send them.
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            long wait = 0;
+            synchronized (this) {
+                long now = System.nanoTime();
+                count(now, bytes);
+                if (rate <= 0) return;
+                refill(now);
+                tokens -= bytes;
+                if (tokens < 0) {
+                    wait = (long) (-tokens / rate * 1000000000L);
+                }
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttling the transfer");
+                }
+            }
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(getBurst(), tokens + (now - refilledAt) * rate / 1000000000L);
+            }
+            refilledAt = now;
+        }
+
+        private double getBurst() {
+            return Math.max(MIN_BURST, rate * BURST_NANOS / 1000000000L);
+        }
+
+        private void count(long now, int bytes) {
+            if (now - windowStart >= WINDOW_NANOS) {
+                lastRate = windowBytes * 1000000000L / (now - windowStart);
+                windowStart = now;
+                windowBytes = 0;
+            }
+            windowBytes += bytes;
+        }
+
+        private synchronized long getRate(long now) {
+            // the last window is stale if the transfer stalled
+            return now - windowStart >= 2 * WINDOW_NANOS ? 0 : lastRate;
+        }
+
+        /**
+         * @return the current allowed rate in bytes per second, 0 for unlimited
+         */
+        public synchronized long getAllowedRate() {
+            return (long) rate;
+        }
+
+        @Override
+        public void close() {
+            synchronized (transfers) {
+                if (transfers.remove(this)) {
+                    allocate();
+                }
+            }
+        }
+    }
+}
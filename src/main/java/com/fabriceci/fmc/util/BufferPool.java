@@ -0,0 +1,202 @@
+package com.fabriceci.fmc.util;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of I/O buffers used by the copy and streaming paths.
+ * <p>
+ * Buffers are grouped in size classes (4KB to 1MB, powers of 4). A request is served with a buffer of the smallest
+ * class that fits, so the returned buffer may be larger than asked. Small classes have a per-thread slot that is
+ * used without any synchronization, every class has a bounded shared free list. Heap buffers ({@code byte[]}) suit
+ * stream I/O, direct buffers suit channel I/O. Requests larger than the biggest class are not pooled.
+ * <p>
+ * Sizes are configured with the {@code buffer.size} (default size of the copy buffers) and
+ * {@code buffer.pool.maxPerClass} (number of free buffers kept per class) properties.
+ */
+public class BufferPool {
+
+    private static final int[] CLASS_SIZES = {4096, 16384, 65536, 262144, 1048576};
+    private static final int THREAD_LOCAL_MAX_SIZE = 65536; // ..bytes = 64KB.
+    private static final int DEFAULT_SIZE = 262144; // ..bytes = 256KB.
+    private static final int DEFAULT_MAX_PER_CLASS = 16;
+
+    private static volatile int defaultSize = DEFAULT_SIZE;
+    private static volatile int maxPerClass = DEFAULT_MAX_PER_CLASS;
+
+    private static final FreeList<byte[]>[] heapLists = newFreeLists();
+    private static final FreeList<ByteBuffer>[] directLists = newFreeLists();
+
+    private static final ThreadLocal<byte[][]> threadHeapBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[CLASS_SIZES.length][];
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer[]> threadDirectBuffers = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[CLASS_SIZES.length];
+        }
+    };
+
+    public static void configure(Properties properties) {
+        defaultSize = parseSize(properties.getProperty("buffer.size"), DEFAULT_SIZE);
+        maxPerClass = parseSize(properties.getProperty("buffer.pool.maxPerClass"), DEFAULT_MAX_PER_CLASS);
+    }
+
+    /**
+     * @return the configured size of the copy buffers
+     */
+    public static int getDefaultSize() {
+        return defaultSize;
+    }
+
+    /**
+     * @return a heap buffer of at least {@link #getDefaultSize()} bytes
+     */
+    public static byte[] acquire() {
+        return acquire(defaultSize);
+    }
+
+    /**
+     * @return a heap buffer of at least the given size
+     */
+    public static byte[] acquire(int minSize) {
+        int index = classIndex(minSize);
+        if (index < 0) {
+            return new byte[minSize];
+        }
+
+        if (CLASS_SIZES[index] <= THREAD_LOCAL_MAX_SIZE) {
+            byte[][] local = threadHeapBuffers.get();
+            byte[] buffer = local[index];
+            if (buffer != null) {
+                local[index] = null;
+                return buffer;
+            }
+        }
+
+        byte[] buffer = heapLists[index].poll();
+        return buffer != null ? buffer : new byte[CLASS_SIZES[index]];
+    }
+
+    /**
+     * Give a heap buffer back to the pool, the buffer must not be used anymore. Arrays which are not exactly of a
+     * class size are left to the garbage collector, as are buffers over the cap of their class.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) return;
+        int index = exactClassIndex(buffer.length);
+        if (index < 0) return;
+
+        if (CLASS_SIZES[index] <= THREAD_LOCAL_MAX_SIZE) {
+            byte[][] local = threadHeapBuffers.get();
+            if (local[index] == null) {
+                local[index] = buffer;
+                return;
+            }
+        }
+        heapLists[index].offer(buffer, maxPerClass);
+    }
+
+    /**
+     * @return a cleared direct buffer of at least the given capacity
+     */
+    public static ByteBuffer acquireDirect(int minSize) {
+        int index = classIndex(minSize);
+        if (index < 0) {
+            return ByteBuffer.allocateDirect(minSize);
+        }
+
+        ByteBuffer buffer = null;
+        if (CLASS_SIZES[index] <= THREAD_LOCAL_MAX_SIZE) {
+            ByteBuffer[] local = threadDirectBuffers.get();
+            buffer = local[index];
+            local[index] = null;
+        }
+        if (buffer == null) {
+            buffer = directLists[index].poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(CLASS_SIZES[index]);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a direct buffer back to the pool, the buffer must not be used anymore. Heap buffers and buffers whose
+     * capacity is not exactly a class size are not pooled.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        int index = exactClassIndex(buffer.capacity());
+        if (index < 0) return;
+
+        if (CLASS_SIZES[index] <= THREAD_LOCAL_MAX_SIZE) {
+            ByteBuffer[] local = threadDirectBuffers.get();
+            if (local[index] == null) {
+                local[index] = buffer;
+                return;
+            }
+        }
+        directLists[index].offer(buffer, maxPerClass);
+    }
+
+    private static int classIndex(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) return i;
+        }
+        return -1;
+    }
+
+    private static int exactClassIndex(int size) {
+        int index = classIndex(size);
+        return index >= 0 && CLASS_SIZES[index] == size ? index : -1;
+    }
+
+    private static int parseSize(String value, int defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            int size = Integer.parseInt(value.trim());
+            return size > 0 ? size : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> FreeList<T>[] newFreeLists() {
+        // arrays of a generic type can only be created raw
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FreeList<T>[] lists = new FreeList[CLASS_SIZES.length];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = new FreeList<>();
+        }
+        return lists;
+    }
+
+    private static class FreeList<T> {
+        private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T item = queue.poll();
+            if (item != null) size.decrementAndGet();
+            return item;
+        }
+
+        void offer(T item, int max) {
+            if (size.incrementAndGet() > max) {
+                size.decrementAndGet();
+                return;
+            }
+            queue.offer(item);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.fabriceci.fmc.util;
+
+/**
+ * Parsed value of a HTTP {@code Range} header for a resource of a known length.
+ * <p>
+ * The parser is hand-written (no regular expression, no split) and stores all the ranges in a single array of
+ * (start, end) pairs. Satisfiable ranges are sorted and coalesced when they overlap or when the gap between them is
+ * smaller than the overhead of an extra multipart part, so the response never sends the same byte twice.
+ */
+public final class ByteRanges {
+
+    /**
+     * Ranges separated by less than this number of bytes are merged, the gap is cheaper to send than the
+     * boundary and headers of another part.
+     */
+    private static final int MIN_GAP = 80;
+
+    /**
+     * Maximum number of ranges accepted in a header, before coalescing.
+     */
+    private static final int MAX_SPECS = 100;
+
+    /**
+     * Returned when the header has more ranges than accepted: the header should be ignored.
+     */
+    public static final ByteRanges TOO_MANY = new ByteRanges(new long[0], 0, 0);
+
+    private final long[] bounds;
+    private final int count;
+    private final long total;
+
+    private ByteRanges(long[] bounds, int count, long total) {
+        this.bounds = bounds;
+        this.count = count;
+        this.total = total;
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @param header the value of the Range header, e.g. "bytes=0-499,-500"
+     * @param length the length of the resource
+     * @param maxParts the maximum number of ranges once coalesced
+     * @return the ranges (empty if none is satisfiable), {@link #TOO_MANY} if the header should be ignored because
+     * it has too many ranges, or null if the header is malformed
+     */
+    public static ByteRanges parse(String header, long length, int maxParts) {
+        int n = header.length();
+        int i = skipSpaces(header, 0);
+        if (!header.regionMatches(true, i, "bytes", 0, 5)) return null;
+        i = skipSpaces(header, i + 5);
+        if (i >= n || header.charAt(i) != '=') return null;
+        i++;
+
+        long[] bounds = new long[8];
+        int count = 0;
+        int specs = 0;
+        boolean empty = true;
+
+        while (true) {
+            i = skipSpaces(header, i);
+            if (i >= n) break;
+            if (header.charAt(i) == ',') {
+                // empty list elements are allowed
+                i++;
+                continue;
+            }
+
+            // first-byte-pos
+            long start = -1;
+            while (i < n && isDigit(header.charAt(i))) {
+                start = accumulate(start, header.charAt(i));
+                i++;
+            }
+            i = skipSpaces(header, i);
+            if (i >= n || header.charAt(i) != '-') return null;
+            i = skipSpaces(header, i + 1);
+
+            // last-byte-pos or suffix-length
+            long end = -1;
+            while (i < n && isDigit(header.charAt(i))) {
+                end = accumulate(end, header.charAt(i));
+                i++;
+            }
+            if (start == -1 && end == -1) return null;
+            i = skipSpaces(header, i);
+            if (i < n && header.charAt(i) != ',') return null;
+
+            empty = false;
+            if (++specs > MAX_SPECS) return TOO_MANY;
+
+            // resolve the spec against the length of the resource, skip unsatisfiable ones
+            if (start == -1) {
+                // suffix range: the last "end" bytes
+                if (end == 0 || length == 0) continue;
+                start = Math.max(0, length - end);
+                end = length - 1;
+            } else {
+                if (end != -1 && end < start) return null;
+                if (start >= length) continue;
+                if (end == -1 || end > length - 1) end = length - 1;
+            }
+
+            if (count * 2 == bounds.length) {
+                long[] grown = new long[bounds.length * 2];
+                System.arraycopy(bounds, 0, grown, 0, bounds.length);
+                bounds = grown;
+            }
+            bounds[count * 2] = start;
+            bounds[count * 2 + 1] = end;
+            count++;
+        }
+
+        if (empty) return null;
+
+        count = coalesce(bounds, count);
+        if (count > maxParts) return TOO_MANY;
+        return new ByteRanges(bounds, count, length);
+    }
+
+    /**
+     * Sort the ranges by start and merge overlapping, adjacent and nearly adjacent ones, in place.
+     * @return the new number of ranges
+     */
+    private static int coalesce(long[] bounds, int count) {
+        if (count < 2) return count;
+
+        // insertion sort, the number of ranges is small
+        for (int i = 1; i < count; i++) {
+            long start = bounds[i * 2];
+            long end = bounds[i * 2 + 1];
+            int j = i - 1;
+            while (j >= 0 && bounds[j * 2] > start) {
+                bounds[(j + 1) * 2] = bounds[j * 2];
+                bounds[(j + 1) * 2 + 1] = bounds[j * 2 + 1];
+                j--;
+            }
+            bounds[(j + 1) * 2] = start;
+            bounds[(j + 1) * 2 + 1] = end;
+        }
+
+        int merged = 0;
+        for (int i = 1; i < count; i++) {
+            long start = bounds[i * 2];
+            long end = bounds[i * 2 + 1];
+            if (start <= bounds[merged * 2 + 1] + MIN_GAP) {
+                bounds[merged * 2 + 1] = Math.max(bounds[merged * 2 + 1], end);
+            } else {
+                merged++;
+                bounds[merged * 2] = start;
+                bounds[merged * 2 + 1] = end;
+            }
+        }
+        return merged + 1;
+    }
+
+    private static long accumulate(long value, char digit) {
+        long current = value == -1 ? 0 : value;
+        // saturate instead of overflowing, such a position is beyond any file anyway
+        if (current > (Long.MAX_VALUE - 9) / 10) return Long.MAX_VALUE;
+        return current * 10 + (digit - '0');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipSpaces(String value, int index) {
+        while (index < value.length() && (value.charAt(index) == ' ' || value.charAt(index) == '\t')) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of ranges
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the first byte of the range at the given index
+     */
+    public long getStart(int index) {
+        return bounds[index * 2];
+    }
+
+    /**
+     * @return the last byte (inclusive) of the range at the given index
+     */
+    public long getEnd(int index) {
+        return bounds[index * 2 + 1];
+    }
+
+    public long getLength(int index) {
+        return bounds[index * 2 + 1] - bounds[index * 2] + 1;
+    }
+
+    /**
+     * @return the Content-Range value of the range at the given index
+     */
+    public String getContentRange(int index) {
+        return "bytes " + getStart(index) + "-" + getEnd(index) + "/" + total;
+    }
+}
@@ -22,7 +22,7 @@ public class CopyDirectoryVisitor extends SimpleFileVisitor<Path> {
 
         try {
             Path targetFile =  targetDir.resolve(sourceDir.relativize(file));
-            Files.copy(file, targetFile);
+            AtomicFiles.copyNew(file, targetFile);
         } catch (IOException ex) {
             throw ex;
         }
@@ -0,0 +1,77 @@
+package com.fabriceci.fmc.util;
+
+/**
+ * CRC-32 helpers.
+ */
+public class CrcUtils {
+
+    private static final int GF2_DIM = 32;
+    private static final long POLYNOMIAL = 0xedb88320L;
+
+    /**
+     * Combine the CRC-32 of two consecutive blocks of data, as zlib's {@code crc32_combine}: the checksum of a large
+     * content can then be computed in parallel, block by block.
+     *
+     * @param crc1 the CRC-32 of the first block
+     * @param crc2 the CRC-32 of the second block
+     * @param length2 the length of the second block
+     * @return the CRC-32 of the two blocks
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[GF2_DIM]; // even-power-of-two zeros operator
+        long[] odd = new long[GF2_DIM]; // odd-power-of-two zeros operator
+
+        // operator for one zero bit
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // operator for two then four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // apply length2 zeros to crc1 (the first squaring puts the operator for one zero byte in even)
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) break;
+
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < GF2_DIM; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.fabriceci.fmc.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+/**
+ * Directory of derived files (e.g. compressed variants) with a total size budget.
+ * <p>
+ * Each entry is identified by a key which must change when the source changes (typically a path and a stamp).
+ * An entry is built once even if it is requested concurrently: the first caller writes it to a temporary file which
+ * is atomically moved in place, the other callers wait for it. The least recently used entries are deleted once the
+ * directory holds more than its budget, except the entries leased with {@link #acquire(String, Producer)} which are
+ * deleted once released. The index is kept in memory, the entries and temporary files left in the directory (and only
+ * those, named by the cache) are deleted when the cache is created.
+ */
+public class DiskCache {
+
+    private static final Pattern FILE_NAME = Pattern.compile("[0-9a-f]{40}(\\d*\\.tmp)?");
+    private static final int MAX_ACQUIRE_ATTEMPTS = 3;
+
+    /**
+     * Writes the content of an entry.
+     */
+    public interface Producer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final Path dir;
+    private volatile long maxBytes;
+
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, FutureTask<Path>> pending = new ConcurrentHashMap<>();
+    // number of leases of each leased entry; guarded by entries
+    private final Map<String, Integer> leases = new HashMap<>();
+    private long totalBytes = 0;
+
+    public DiskCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        deleteEntries(dir);
+    }
+
+    /**
+     * Delete the entries and temporary files a cache left in the given directory, then the directory itself if
+     * nothing else is left in it. No cache may use the directory anymore.
+     */
+    public static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        deleteEntries(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            if (files.iterator().hasNext()) return;
+        }
+        delete(dir);
+    }
+
+    private static void deleteEntries(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                // a misconfigured directory only loses files the cache could have written
+                if (FILE_NAME.matcher(file.getFileName().toString()).matches() && Files.isRegularFile(file)) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        synchronized (entries) {
+            evict(null);
+        }
+    }
+
+    /**
+     * Get the file of an entry, building it with the given producer if needed.
+     * <p>
+     * The file may be deleted by a later eviction, callers should open it right away.
+     */
+    public Path get(String key, final Producer producer) throws IOException {
+        final String name = hash(key);
+        Path file = dir.resolve(name);
+        synchronized (entries) {
+            if (entries.get(name) != null) return file;
+        }
+
+        FutureTask<Path> task = new FutureTask<>(new Callable<Path>() {
+            @Override
+            public Path call() throws Exception {
+                return build(name, producer);
+            }
+        });
+        FutureTask<Path> existing = pending.putIfAbsent(name, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                pending.remove(name, task);
+            }
+            existing = task;
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the cache entry " + name);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Get the file of an entry like {@link #get(String, Producer)}, and keep it from being evicted until the lease is
+     * closed, so it can be opened by path meanwhile.
+     */
+    public Lease acquire(String key, Producer producer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Path file = get(key, producer);
+            String name = file.getFileName().toString();
+            synchronized (entries) {
+                if (entries.get(name) != null) {
+                    Integer count = leases.get(name);
+                    leases.put(name, count == null ? 1 : count + 1);
+                    return new Lease(name, file);
+                }
+            }
+            // evicted by another build in between
+            if (attempt >= MAX_ACQUIRE_ATTEMPTS) {
+                throw new IOException("Cache entry " + name + " evicted before it could be used");
+            }
+        }
+    }
+
+    private Path build(String name, Producer producer) throws IOException {
+        Path file = dir.resolve(name);
+        synchronized (entries) {
+            // built by a caller which was not waiting on the same task
+            if (entries.get(name) != null) return file;
+        }
+
+        Path temp = Files.createTempFile(dir, name, ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                producer.write(out);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            delete(temp);
+            throw e;
+        }
+
+        long size = Files.size(file);
+        synchronized (entries) {
+            Long previous = entries.put(name, size);
+            if (previous != null) totalBytes -= previous;
+            totalBytes += size;
+            evict(name);
+        }
+        return file;
+    }
+
+    /**
+     * Delete the least recently used entries until the budget is met, except the given one and the leased ones.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep) || leases.containsKey(eldest.getKey())) continue;
+            it.remove();
+            totalBytes -= eldest.getValue();
+            delete(dir.resolve(eldest.getKey()));
+        }
+    }
+
+    /**
+     * A cache entry which is not evicted until the lease is closed.
+     */
+    public class Lease implements Closeable {
+        private final String name;
+        private final Path file;
+        private boolean closed = false;
+
+        private Lease(String name, Path file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        public Path getPath() {
+            return file;
+        }
+
+        @Override
+        public void close() {
+            synchronized (entries) {
+                if (closed) return;
+                closed = true;
+                int count = leases.get(name) - 1;
+                if (count > 0) {
+                    leases.put(name, count);
+                } else {
+                    leases.remove(name);
+                    // evictions deferred while the entry was leased
+                    evict(null);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignore) {}
+    }
+
+    private static String hash(String key) {
+        return StringUtils.sha1Hex(key);
+    }
+}
@@ -0,0 +1,190 @@
+package com.fabriceci.fmc.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Bounded cache of open read-only file channels and of the stamp of their file.
+ * <p>
+ * Repeated range requests on the same file (e.g. a video being scrubbed) reuse the open channel for positional
+ * reads instead of stating, opening and closing the file again. An entry is revalidated against the file system
+ * at most once per {@code channelCache.revalidateMillis} and dropped when the file's stamp changed.
+ * <p>
+ * Handles are reference-counted: an evicted or invalidated channel is only closed once the last handle using it
+ * has been closed. The cache is configured with the {@code channelCache.size} (0 disables it) and
+ * {@code channelCache.revalidateMillis} properties.
+ */
+public class FileChannelCache {
+
+    private static final int DEFAULT_SIZE = 64;
+    private static final long DEFAULT_REVALIDATE_MILLIS = 1000;
+
+    private static volatile int maxSize = DEFAULT_SIZE;
+    private static volatile long revalidateMillis = DEFAULT_REVALIDATE_MILLIS;
+
+    private static final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public static void configure(Properties properties) {
+        maxSize = parseInt(properties.getProperty("channelCache.size"), DEFAULT_SIZE);
+        revalidateMillis = parseInt(properties.getProperty("channelCache.revalidateMillis"), (int) DEFAULT_REVALIDATE_MILLIS);
+    }
+
+    /**
+     * Get an open channel on the given file, from the cache if possible.
+     * <p>
+     * The returned handle must be closed once the reads are done.
+     *
+     * @throws java.nio.file.NoSuchFileException if the file does not exist
+     */
+    public static Handle open(Path path) throws IOException {
+        path = path.toAbsolutePath();
+        long now = System.currentTimeMillis();
+
+        Entry stale = null;
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                if (now - entry.validatedAt < revalidateMillis) {
+                    entry.references++;
+                    return new Handle(entry);
+                }
+                // revalidated below, out of the lock
+                entries.remove(path);
+                entry.references++;
+                stale = entry;
+            }
+        }
+
+        FileStamp stamp;
+        try {
+            stamp = FileStamp.of(path);
+        } catch (IOException e) {
+            if (stale != null) release(stale, true);
+            throw e;
+        }
+
+        if (stale != null) {
+            if (stamp.equals(stale.stamp)) {
+                stale.validatedAt = now;
+                return cache(path, stale);
+            }
+            release(stale, true);
+        }
+
+        Entry entry = new Entry(FileChannel.open(path, StandardOpenOption.READ), stamp, now);
+        entry.references = 1;
+        return cache(path, entry);
+    }
+
+    /**
+     * Drop the cached channel of a file, e.g. after it was written.
+     */
+    public static void invalidate(Path path) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.remove(path.toAbsolutePath());
+        }
+        if (entry != null) {
+            release(entry, false);
+        }
+    }
+
+    private static Handle cache(Path path, Entry entry) {
+        if (maxSize <= 0) {
+            entry.evicted = true;
+            return new Handle(entry);
+        }
+
+        synchronized (entries) {
+            Entry previous = entries.put(path, entry);
+            if (previous != null && previous != entry) {
+                previous.evicted = true;
+                closeIfUnused(previous);
+            }
+            Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+            while (entries.size() > maxSize && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                eldest.evicted = true;
+                closeIfUnused(eldest);
+            }
+        }
+        return new Handle(entry);
+    }
+
+    private static void release(Entry entry, boolean decrement) {
+        synchronized (entries) {
+            if (decrement) entry.references--;
+            entry.evicted = true;
+            closeIfUnused(entry);
+        }
+    }
+
+    private static void closeIfUnused(Entry entry) {
+        if (entry.evicted && entry.references == 0) {
+            try {
+                entry.channel.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static class Entry {
+        final FileChannel channel;
+        final FileStamp stamp;
+        volatile long validatedAt;
+        int references;
+        boolean evicted;
+
+        Entry(FileChannel channel, FileStamp stamp, long validatedAt) {
+            this.channel = channel;
+            this.stamp = stamp;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    /**
+     * A reference to a cached channel. Only positional reads may be used on the channel, it is shared.
+     */
+    public static class Handle implements Closeable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        public FileChannel getChannel() {
+            return entry.channel;
+        }
+
+        public FileStamp getStamp() {
+            return entry.stamp;
+        }
+
+        @Override
+        public void close() {
+            synchronized (entries) {
+                if (closed) return;
+                closed = true;
+                entry.references--;
+                closeIfUnused(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.fabriceci.fmc.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Bounded in-memory cache of the content of small files (icons, thumbnails, small documents).
+ * <p>
+ * A hot small file is served from memory without opening it, and is only stated once per
+ * {@code contentCache.revalidateMillis} to check that its stamp did not change. The cached content is never
+ * modified, so it is shared by concurrent responses without copies.
+ * <p>
+ * Files larger than {@code contentCache.maxFileSize} are not cached, the cache holds at most
+ * {@code contentCache.maxBytes} bytes (0 disables it) and evicts the least recently used files first. That a file is
+ * too large is remembered as well, and revalidated on the same delay, so large files are not stated on every request
+ * before they are read from the disk.
+ */
+public class FileContentCache {
+
+    private static final int DEFAULT_MAX_FILE_SIZE = 262144; // ..bytes = 256KB.
+    private static final int DEFAULT_MAX_BYTES = 33554432; // ..bytes = 32MB.
+    private static final long DEFAULT_REVALIDATE_MILLIS = 1000;
+    private static final int MAX_TOO_LARGE = 1024;
+
+    private static volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private static volatile long revalidateMillis = DEFAULT_REVALIDATE_MILLIS;
+
+    private static final LinkedHashMap<Path, Content> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // files found too large to be cached, with the time they were stated; guarded by entries
+    private static final LinkedHashMap<Path, Long> tooLarge = new LinkedHashMap<Path, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+            return size() > MAX_TOO_LARGE;
+        }
+    };
+    private static long totalBytes = 0;
+
+    public static void configure(Properties properties) {
+        maxFileSize = parseLong(properties.getProperty("contentCache.maxFileSize"), DEFAULT_MAX_FILE_SIZE);
+        revalidateMillis = parseLong(properties.getProperty("contentCache.revalidateMillis"), DEFAULT_REVALIDATE_MILLIS);
+        long bytes = parseLong(properties.getProperty("contentCache.maxBytes"), DEFAULT_MAX_BYTES);
+        // the files remembered as too large are stated again after revalidateMillis, whatever the new sizes
+        if (bytes < maxBytes) {
+            synchronized (entries) {
+                maxBytes = bytes;
+                evict();
+            }
+        } else {
+            maxBytes = bytes;
+        }
+    }
+
+    /**
+     * Get the content of a file from the cache, loading it if needed.
+     *
+     * @return the content, or null if the file is too large to be cached (or the cache is disabled)
+     * @throws java.nio.file.NoSuchFileException if the file does not exist
+     */
+    public static Content get(Path path) throws IOException {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        path = path.toAbsolutePath();
+        long now = System.currentTimeMillis();
+
+        Content content;
+        synchronized (entries) {
+            content = entries.get(path);
+            if (content == null) {
+                Long statedAt = tooLarge.get(path);
+                if (statedAt != null && now - statedAt < revalidateMillis) {
+                    return null;
+                }
+            }
+        }
+        if (content != null && now - content.validatedAt < revalidateMillis) {
+            return content;
+        }
+
+        FileStamp stamp = FileStamp.of(path);
+        if (content != null && stamp.equals(content.stamp)) {
+            content.validatedAt = now;
+            return content;
+        }
+        if (content != null) {
+            invalidate(path);
+        }
+        if (stamp.getSize() > maxFileSize || stamp.getSize() > maxBytes) {
+            synchronized (entries) {
+                tooLarge.put(path, now);
+            }
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) stamp.getSize()];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at position " + buffer.position());
+                }
+            }
+        }
+        // the file changed while it was read, let the caller read it from the disk
+        if (!stamp.equals(FileStamp.of(path))) {
+            return null;
+        }
+
+        content = new Content(bytes, stamp, now);
+        synchronized (entries) {
+            Content previous = entries.put(path, content);
+            if (previous != null) totalBytes -= previous.bytes.length;
+            totalBytes += bytes.length;
+            evict();
+        }
+        return content;
+    }
+
+    /**
+     * Drop the cached content of a file, e.g. after it was written.
+     */
+    public static void invalidate(Path path) {
+        synchronized (entries) {
+            Content content = entries.remove(path.toAbsolutePath());
+            if (content != null) totalBytes -= content.bytes.length;
+            tooLarge.remove(path.toAbsolutePath());
+        }
+    }
+
+    private static void evict() {
+        Iterator<Map.Entry<Path, Content>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().getValue().bytes.length;
+            it.remove();
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * The immutable content of a cached file.
+     */
+    public static class Content {
+        private final byte[] bytes;
+        private final FileStamp stamp;
+        private volatile long validatedAt;
+
+        private Content(byte[] bytes, FileStamp stamp, long validatedAt) {
+            this.bytes = bytes;
+            this.stamp = stamp;
+            this.validatedAt = validatedAt;
+        }
+
+        public FileStamp getStamp() {
+            return stamp;
+        }
+
+        public long getSize() {
+            return bytes.length;
+        }
+
+        /**
+         * Write a region of the content to the given stream, which is neither flushed nor closed.
+         */
+        public void writeTo(OutputStream out, long position, long count) throws IOException {
+            out.write(bytes, (int) position, (int) count);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identity of a file version: file key (device and inode on Unix), size and modification time.
+ * <p>
+ * Two stamps are equal only if the same file was not modified, replaced or renamed over in between, which makes
+ * the stamp suitable for HTTP validators and for the validation of cached content.
+ */
+public final class FileStamp {
+
+    private final Object fileKey;
+    private final long size;
+    private final long lastModifiedNanos;
+
+    private FileStamp(Object fileKey, long size, long lastModifiedNanos) {
+        this.fileKey = fileKey;
+        this.size = size;
+        this.lastModifiedNanos = lastModifiedNanos;
+    }
+
+    public static FileStamp of(Path path) throws IOException {
+        return of(Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    public static FileStamp of(BasicFileAttributes attributes) {
+        return new FileStamp(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the modification time in milliseconds
+     */
+    public long getLastModified() {
+        return TimeUnit.NANOSECONDS.toMillis(lastModifiedNanos);
+    }
+
+    /**
+     * @return the modification time truncated to the second, as it is sent in HTTP date headers
+     */
+    public long getLastModifiedHttp() {
+        return getLastModified() / 1000 * 1000;
+    }
+
+    /**
+     * @return a strong entity tag (quoted) derived from the file key, the size and the modification time
+     */
+    public String getETag() {
+        StringBuilder sb = new StringBuilder("\"");
+        if (fileKey != null) {
+            sb.append(Integer.toHexString(fileKey.hashCode())).append('-');
+        }
+        sb.append(Long.toHexString(size)).append('-').append(Long.toHexString(lastModifiedNanos)).append('"');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FileStamp)) return false;
+        FileStamp that = (FileStamp) o;
+        return size == that.size
+                && lastModifiedNanos == that.lastModifiedNanos
+                && (fileKey == null ? that.fileKey == null : fileKey.equals(that.fileKey));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = fileKey != null ? fileKey.hashCode() : 0;
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (lastModifiedNanos ^ (lastModifiedNanos >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getETag();
+    }
+}
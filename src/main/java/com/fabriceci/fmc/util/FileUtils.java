@@ -15,7 +15,6 @@ public class FileUtils {
     private static final char UNIX_SEPARATOR = '/';
     private static final char WINDOWS_SEPARATOR = '\\';
     private static final char EXTENSION_SEPARATOR = '.';
-    private static final int BUFFER_SIZE = 4096;
 
     /**
      *
@@ -221,9 +220,9 @@ public class FileUtils {
     public static int copy(InputStream in, OutputStream out) throws IOException {
         if(in == null) throw new IllegalArgumentException("No InputStream specified");
         if(out == null) throw new IllegalArgumentException("No OutputStream specified");
+        byte[] buffer = BufferPool.acquire();
         try {
             int byteCount = 0;
-            byte[] buffer = new byte[BUFFER_SIZE];
             int bytesRead = -1;
             while ((bytesRead = in.read(buffer)) != -1) {
                 out.write(buffer, 0, bytesRead);
@@ -233,6 +232,7 @@ public class FileUtils {
             return byteCount;
         }
         finally {
+            BufferPool.release(buffer);
             try {
                 in.close();
             }
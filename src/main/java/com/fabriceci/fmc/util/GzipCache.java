@@ -0,0 +1,130 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Content negotiation settings and disk cache of the gzip variants of compressible files.
+ * <p>
+ * Files of a compressible content type ({@code gzip.mimeTypes}, a trailing "/" matches a whole type) and of at least
+ * {@code gzip.minSize} bytes are sent gzip-encoded to the clients accepting it. Files up to
+ * {@code gzip.cache.maxFileSize} are compressed once into {@code gzip.cache.dir}, which holds at most
+ * {@code gzip.cache.maxBytes}, larger files are compressed on the fly.
+ */
+public class GzipCache {
+
+    private static final String DEFAULT_MIME_TYPES = "text/,application/json,application/javascript,application/xml,image/svg+xml";
+    private static final long DEFAULT_MIN_SIZE = 1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 16777216; // ..bytes = 16MB.
+    private static final long DEFAULT_MAX_BYTES = 268435456; // ..bytes = 256MB.
+
+    private static volatile boolean enabled = false;
+    private static volatile String[] mimeTypes = DEFAULT_MIME_TYPES.split(",");
+    private static volatile long minSize = DEFAULT_MIN_SIZE;
+    private static volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    // null for a directory of this instance, shared directories would have their entries deleted by each other
+    private static volatile Path dir;
+
+    private static DiskCache cache;
+    private static Path instanceDir;
+
+    public static void configure(Properties properties) {
+        enabled = Boolean.parseBoolean(properties.getProperty("gzip.enabled"));
+        String types = properties.getProperty("gzip.mimeTypes");
+        mimeTypes = (StringUtils.isEmpty(types) ? DEFAULT_MIME_TYPES : types).split("\\s*,\\s*");
+        minSize = parseLong(properties.getProperty("gzip.minSize"), DEFAULT_MIN_SIZE);
+        maxFileSize = parseLong(properties.getProperty("gzip.cache.maxFileSize"), DEFAULT_MAX_FILE_SIZE);
+        maxBytes = parseLong(properties.getProperty("gzip.cache.maxBytes"), DEFAULT_MAX_BYTES);
+        String cacheDir = properties.getProperty("gzip.cache.dir");
+        dir = StringUtils.isEmpty(cacheDir) ? null : Paths.get(cacheDir);
+        synchronized (GzipCache.class) {
+            if (cache != null && !cache.getDirectory().equals(dir != null ? dir : instanceDir)) {
+                cache = null;
+            }
+            if (cache != null) {
+                cache.setMaxBytes(maxBytes);
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if a content of the given type and length should be compressed
+     */
+    public static boolean isCompressible(String mimeType, long length) {
+        if (!enabled || mimeType == null || length < minSize) {
+            return false;
+        }
+        for (String type : mimeTypes) {
+            if (type.endsWith("/") ? mimeType.startsWith(type) : mimeType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the entity tag of the gzip variant of the given (quoted) entity tag
+     */
+    public static String getETag(String eTag) {
+        return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+    }
+
+    /**
+     * Get the compressed variant identified by the given key, compressing it with the given producer if needed. The
+     * file is not evicted until the lease is closed, the caller opens it meanwhile.
+     *
+     * @param key identifies the source content, must change when the content changes
+     * @param length the length of the source content
+     * @return the lease of the compressed file, or null if the source is too large to be cached
+     */
+    public static DiskCache.Lease acquire(String key, long length, DiskCache.Producer producer) throws IOException {
+        if (length > maxFileSize || length > maxBytes) {
+            return null;
+        }
+        return getCache().acquire(key, producer);
+    }
+
+    /**
+     * Delete the directory created for this instance, if any, with the entries cached in it.
+     */
+    public static synchronized void shutdown() {
+        cache = null;
+        if (instanceDir != null) {
+            try {
+                DiskCache.deleteDirectory(instanceDir);
+            } catch (IOException ignore) {}
+            instanceDir = null;
+        }
+    }
+
+    private static synchronized DiskCache getCache() throws IOException {
+        if (cache == null) {
+            Path cacheDir = dir;
+            if (cacheDir == null) {
+                if (instanceDir == null) {
+                    instanceDir = Files.createTempDirectory("filemanager-gzip");
+                }
+                cacheDir = instanceDir;
+            }
+            cache = new DiskCache(cacheDir, maxBytes);
+        }
+        return cache;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.fabriceci.fmc.util;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class HttpUtils {
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Returns true if the given accept header accepts the given value.
+     * @param acceptHeader The accept header.
+     * @param toAccept The value to be accepted.
+     * @return True if the given accept header accepts the given value.
+     */
+    public static boolean accepts(String acceptHeader, String toAccept) {
+        String[] acceptValues = acceptHeader.split("\\s*(,|;)\\s*");
+        Arrays.sort(acceptValues);
+
+        return Arrays.binarySearch(acceptValues, toAccept) > -1
+                || Arrays.binarySearch(acceptValues, toAccept.replaceAll("/.*$", "/*")) > -1
+                || Arrays.binarySearch(acceptValues, "*/*") > -1;
+    }
+
+    /**
+     * Returns true if the given match header (If-Match, If-None-Match) matches the given entity tag.
+     * @param matchHeader The match header, a list of entity tags or "*".
+     * @param eTag The quoted entity tag of the resource.
+     * @param weak Use the weak comparison (If-None-Match) instead of the strong one (If-Match, If-Range).
+     * @return True if the given match header matches the given entity tag.
+     */
+    public static boolean matchesETag(String matchHeader, String eTag, boolean weak) {
+        for (String value : matchHeader.split(",")) {
+            value = value.trim();
+            if (value.equals("*")) {
+                return true;
+            }
+            if (value.startsWith("W/")) {
+                if (!weak) continue;
+                value = value.substring(2);
+            }
+            if (value.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given Accept-Encoding header accepts the given content coding.
+     * @param acceptEncodingHeader The Accept-Encoding header, may be null.
+     * @param encoding The content coding, e.g. "gzip".
+     * @return True if the coding is listed (or matched by "*") with a non-zero quality value.
+     */
+    public static boolean acceptsEncoding(String acceptEncodingHeader, String encoding) {
+        if (acceptEncodingHeader == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String value : acceptEncodingHeader.split(",")) {
+            String[] params = value.split(";");
+            String coding = params[0].trim();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(encoding)) {
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Returns the value of a date header, or -1 if the header is absent or is not a valid date.
+     */
+    public static long getDateHeader(HttpServletRequest request, String name) {
+        if (request.getHeader(name) == null) {
+            return -1;
+        }
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a Content-Range header of a request body, e.g. "bytes 0-1048575/4194304".
+     * @param contentRangeHeader The Content-Range header, may be null.
+     * @return The first byte, last byte and complete length, or null if the header is absent or invalid.
+     */
+    public static long[] parseContentRange(String contentRangeHeader) {
+        if (contentRangeHeader == null) {
+            return null;
+        }
+        Matcher matcher = CONTENT_RANGE.matcher(contentRangeHeader.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(matcher.group(1));
+            long end = Long.parseLong(matcher.group(2));
+            long length = Long.parseLong(matcher.group(3));
+            return start <= end && end < length ? new long[]{start, end, length} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
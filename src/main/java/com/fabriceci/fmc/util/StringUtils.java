@@ -1,9 +1,42 @@
 package com.fabriceci.fmc.util;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 public class StringUtils {
 
     public static boolean isEmpty(final CharSequence cs) {
         return cs == null || cs.length() == 0;
     }
 
-}
\ No newline at end of file
+    /**
+     * @return a new SHA-1 digest, which every Java platform provides
+     */
+    public static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the SHA-1 of the UTF-8 bytes of a string, in lower case hex
+     */
+    public static String sha1Hex(String value) {
+        return toHex(sha1().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the bytes in lower case hex, two digits each
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+}
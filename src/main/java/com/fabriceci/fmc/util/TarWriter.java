@@ -0,0 +1,183 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes an uncompressed TAR archive (POSIX pax) to a stream.
+ * <p>
+ * The files are copied as they are, with {@link TransferUtils} (a kernel transfer when the stream is a file): no CPU
+ * is spent on compression, which is the better choice for files which do not compress (media, archives) or when the
+ * network is faster than deflate.
+ * <p>
+ * Names up to 100 bytes, or which split at a "/" between the 155 bytes prefix and the name fields, and sizes under
+ * 8GB are written in the ustar header alone. Other names, non ASCII names and larger sizes are written in a pax
+ * extended header before it, so names and sizes are not limited.
+ */
+public class TarWriter implements ArchiveWriter {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_SIZE = 100;
+    private static final int PREFIX_SIZE = 155;
+    private static final long MAX_SIZE = 077777777777L; // ..11 octal digits = 8GB - 1.
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE * 2];
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final ArchiveStats stats = new ArchiveStats();
+    private long offset = 0;
+    private boolean finished = false;
+
+    /**
+     * @param out the stream to write the archive to, it is neither flushed nor closed
+     */
+    public TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Add a file to the archive. The file is copied right away.
+     */
+    @Override
+    public void addFile(String name, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long lastModified = file.lastModified();
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int split = getSplit(bytes);
+
+            StringBuilder pax = new StringBuilder();
+            if (split < 0 || bytes.length != name.length()) {
+                appendRecord(pax, "path", name);
+            }
+            if (size > MAX_SIZE) {
+                appendRecord(pax, "size", Long.toString(size));
+            }
+            if (pax.length() > 0) {
+                byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+                writeHeader(truncate("PaxHeaders/" + file.getName()), -1, records.length, lastModified, TYPE_PAX_HEADER);
+                out.write(records);
+                writePadding(records.length);
+                if (split < 0) {
+                    bytes = truncate(name);
+                    split = 0;
+                }
+            }
+
+            writeHeader(bytes, split, size > MAX_SIZE ? 0 : size, lastModified, TYPE_FILE);
+            TransferUtils.transfer(channel, 0, size, out);
+            writePadding(size);
+            stats.addEntry(true, size);
+        }
+    }
+
+    /**
+     * Write the two empty blocks which end the archive. The stream is not closed.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        out.write(ZEROS);
+        offset += ZEROS.length;
+        stats.setArchiveBytes(offset);
+    }
+
+    @Override
+    public void abort() {
+        finished = true;
+    }
+
+    @Override
+    public ArchiveStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the position of the "/" which splits a name between the prefix and name fields, 0 if the name fits in
+     * the name field, -1 if it can not be split
+     */
+    private static int getSplit(byte[] name) {
+        if (name.length <= NAME_SIZE) {
+            return 0;
+        }
+        // the prefix ends at a "/" which is not written, the name keeps the rest
+        for (int i = name.length - NAME_SIZE - 1; i < name.length && i <= PREFIX_SIZE; i++) {
+            if (i > 0 && name[i] == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first bytes of a name, for the name field of a header followed by the real name in pax records
+     */
+    private static byte[] truncate(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= NAME_SIZE ? bytes : Arrays.copyOf(bytes, NAME_SIZE);
+    }
+
+    /**
+     * Append a pax record: "length key=value\n", the length counting its own digits.
+     */
+    private static void appendRecord(StringBuilder records, String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int total = length + Integer.toString(length).length();
+        total = length + Integer.toString(total).length();
+        records.append(total).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    private void writePadding(long size) throws IOException {
+        int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        out.write(ZEROS, 0, padding);
+        offset += size + padding;
+    }
+
+    private void writeHeader(byte[] name, int split, long size, long lastModified, byte type) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        if (split > 0) {
+            System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+            System.arraycopy(name, 0, header, 345, split);
+        } else {
+            System.arraycopy(name, 0, header, 0, name.length);
+        }
+        writeOctal(0644, header, 100, 8);
+        writeOctal(0, header, 108, 8);
+        writeOctal(0, header, 116, 8);
+        writeOctal(size, header, 124, 12);
+        writeOctal(lastModified / 1000, header, 136, 12);
+        header[156] = type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // the checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        writeOctal(checksum, header, 148, 7);
+
+        out.write(header);
+        offset += BLOCK_SIZE;
+    }
+
+    /**
+     * Write a number as octal digits padded with zeros, followed by a NUL.
+     */
+    private static void writeOctal(long value, byte[] buffer, int offset, int length) {
+        int position = offset + length - 1;
+        buffer[position--] = 0;
+        while (position >= offset) {
+            buffer[position--] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+}
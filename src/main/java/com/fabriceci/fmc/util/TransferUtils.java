@@ -0,0 +1,131 @@
+package com.fabriceci.fmc.util;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copy file regions to streams and channels with as few copies and system calls as possible.
+ */
+public class TransferUtils {
+
+    private static final long WRITE_TIMEOUT = 60000; // ..milliseconds a non-blocking target may stay full.
+
+    /**
+     * Copy a region of a file channel to an output stream.
+     * <p>
+     * If the stream is backed by a file the copy is delegated to {@link FileChannel#transferTo} and the kernel
+     * moves the bytes. Otherwise (e.g. a servlet output stream) the region is read with positional reads into a
+     * large pooled buffer, which is written to the stream as is. The stream is neither flushed nor closed.
+     *
+     * @param source the channel to read from, its position is not modified
+     * @param position the position of the first byte to copy
+     * @param count the number of bytes to copy
+     * @param out the stream to copy to
+     * @return the number of bytes copied
+     * @throws IOException in case of I/O errors or if the file is shorter than expected
+     */
+    public static long transfer(FileChannel source, long position, long count, OutputStream out) throws IOException {
+        if (out instanceof FileOutputStream) {
+            return transfer(source, position, count, ((FileOutputStream) out).getChannel());
+        }
+
+        byte[] buffer = BufferPool.acquire(bufferSize(count));
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long remaining = count;
+            while (remaining > 0) {
+                byteBuffer.clear();
+                if (remaining < buffer.length) byteBuffer.limit((int) remaining);
+                int read = source.read(byteBuffer, position);
+                if (read < 0) throw new EOFException("Unexpected end of file at position " + position);
+                out.write(buffer, 0, read);
+                position += read;
+                remaining -= read;
+            }
+            return count;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Copy a region of a file channel to a writable channel.
+     * <p>
+     * File and blocking socket targets use {@link FileChannel#transferTo} (sendfile / mmap on most platforms), other
+     * channels are fed from a large pooled direct buffer. A non-blocking target which is full is waited for with a
+     * selector rather than retried in a loop.
+     *
+     * @param source the channel to read from, its position is not modified
+     * @param position the position of the first byte to copy
+     * @param count the number of bytes to copy
+     * @param target the channel to copy to
+     * @return the number of bytes copied
+     * @throws IOException in case of I/O errors, if the file is shorter than expected or if a non-blocking target
+     * stays full for too long
+     */
+    public static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long remaining = count;
+        SelectableChannel selectable = target instanceof SelectableChannel ? (SelectableChannel) target : null;
+
+        // transferTo returns 0 when a non-blocking target is full, which can not be told from the end of the file
+        if (target instanceof FileChannel || (selectable != null && selectable.isBlocking())) {
+            while (remaining > 0) {
+                long transferred = source.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    // transferTo returns 0 at the end of the file
+                    if (position >= source.size()) throw new EOFException("Unexpected end of file at position " + position);
+                    continue;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            return count;
+        }
+
+        ByteBuffer buffer = BufferPool.acquireDirect(bufferSize(count));
+        Selector selector = null;
+        try {
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+                int read = source.read(buffer, position);
+                if (read < 0) throw new EOFException("Unexpected end of file at position " + position);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (target.write(buffer) == 0 && selectable != null) {
+                        if (selector == null) {
+                            selector = Selector.open();
+                            selectable.register(selector, SelectionKey.OP_WRITE);
+                        }
+                        awaitWritable(selector);
+                    }
+                }
+                position += read;
+                remaining -= read;
+            }
+            return count;
+        } finally {
+            BufferPool.release(buffer);
+            if (selector != null) selector.close();
+        }
+    }
+
+    private static void awaitWritable(Selector selector) throws IOException {
+        if (selector.select(WRITE_TIMEOUT) == 0) {
+            throw new IOException("Write timed out after " + WRITE_TIMEOUT + " ms");
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private static int bufferSize(long count) {
+        return (int) Math.min(BufferPool.getDefaultSize(), Math.max(count, 1));
+    }
+}
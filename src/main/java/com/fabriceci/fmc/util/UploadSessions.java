@@ -0,0 +1,365 @@
+package com.fabriceci.fmc.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads sent in chunks, which survive dropped connections.
+ * <p>
+ * A session is identified by an id (given by the client, or derived from the target and size of the file) and has a
+ * temporary file in {@code upload.chunk.dir}, or by default in a hidden directory on the file system of the uploaded
+ * files, so that the complete file is moved rather than copied. The temporary file gets the length of the upload at
+ * once, as a sparse file where the file system supports it (no space is reserved), so each chunk is written right at
+ * its offset, in any order. The byte ranges received are saved next to it after each chunk: a client whose connection dropped
+ * asks for them and sends only the missing ones, even after a restart of the server. Once every byte is received the
+ * file is moved into place atomically, and the stamp of the file is kept for {@code upload.chunk.maxAge} seconds: a
+ * client which lost the response to its last chunk learns that the upload is complete rather than starting it over.
+ * Sessions idle for more than {@code upload.chunk.maxAge} seconds are deleted.
+ */
+public class UploadSessions {
+
+    private static final long DEFAULT_MAX_AGE = 86400; // ..seconds = 1 day.
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    // null to keep the sessions in the default directory given by the caller
+    private static volatile Path configuredDir;
+    private static volatile long maxAge = DEFAULT_MAX_AGE * 1000;
+
+    // by session directory and id
+    private static final Map<Path, Session> sessions = new HashMap<>();
+
+    public static void configure(Properties properties) {
+        String uploadDir = properties.getProperty("upload.chunk.dir");
+        configuredDir = StringUtils.isEmpty(uploadDir) ? null : Paths.get(uploadDir);
+        String value = properties.getProperty("upload.chunk.maxAge");
+        long age = DEFAULT_MAX_AGE;
+        if (!StringUtils.isEmpty(value)) {
+            try {
+                age = Long.parseLong(value.trim());
+            } catch (NumberFormatException ignore) {}
+        }
+        maxAge = age * 1000;
+    }
+
+    /**
+     * @return true if the id can name a session: 1 to 64 letters, digits, "-" or "_"
+     */
+    public static boolean isValidId(String id) {
+        return id != null && ID_PATTERN.matcher(id).matches();
+    }
+
+    /**
+     * @return the id of the upload of a file of the given size to the given path, for clients which do not name
+     * their uploads
+     */
+    public static String getId(String path, long size) {
+        if (StringUtils.isEmpty(path)) {
+            return null;
+        }
+        return StringUtils.sha1Hex(path + "\n" + size);
+    }
+
+    /**
+     * @param defaultDir the directory of the sessions unless {@code upload.chunk.dir} is set, on the file system of
+     * the uploaded files
+     * @return the directory of the sessions
+     */
+    public static Path getDir(Path defaultDir) {
+        Path dir = configuredDir;
+        return dir != null ? dir : defaultDir;
+    }
+
+    /**
+     * Get a session, resuming it from disk if it was started before, or start it.
+     *
+     * @param size the size of the uploaded file
+     * @param defaultDir the directory of the sessions unless {@code upload.chunk.dir} is set, see {@link #getDir(Path)}
+     * @throws IOException if the session exists for another size
+     */
+    public static Session open(String id, long size, Path defaultDir) throws IOException {
+        if (!isValidId(id)) {
+            throw new IllegalArgumentException("Invalid upload id: " + id);
+        }
+        Path dir = getDir(defaultDir);
+        synchronized (sessions) {
+            Session session = sessions.get(dir.resolve(id));
+            if (session == null) {
+                session = load(dir, id);
+            }
+            if (session == null) {
+                deleteExpired(dir);
+                Files.createDirectories(dir);
+                session = new Session(dir, id, size);
+                Files.deleteIfExists(session.completedFile);
+                // the file gets its length at once (no space is reserved), the chunks are written at their offset
+                try (FileChannel channel = FileChannel.open(session.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    if (size > 0) {
+                        channel.write(ByteBuffer.allocate(1), size - 1);
+                    }
+                }
+                session.save();
+            } else if (session.size != size) {
+                throw new IOException("Upload " + id + " has a size of " + session.size + " bytes, not " + size);
+            }
+            sessions.put(dir.resolve(id), session);
+            return session;
+        }
+    }
+
+    /**
+     * @param defaultDir the directory of the sessions unless {@code upload.chunk.dir} is set, see {@link #getDir(Path)}
+     * @return the session, or null if there is no such session
+     */
+    public static Session find(String id, Path defaultDir) throws IOException {
+        if (!isValidId(id)) {
+            return null;
+        }
+        Path dir = getDir(defaultDir);
+        synchronized (sessions) {
+            Session session = sessions.get(dir.resolve(id));
+            if (session == null) {
+                session = load(dir, id);
+                if (session != null) {
+                    sessions.put(dir.resolve(id), session);
+                }
+            }
+            return session;
+        }
+    }
+
+    /**
+     * @param defaultDir the directory of the sessions unless {@code upload.chunk.dir} is set, see {@link #getDir(Path)}
+     * @return true if the upload was completed to the given file, which was not modified since
+     */
+    public static boolean isCompleted(String id, Path target, Path defaultDir) throws IOException {
+        if (!isValidId(id)) {
+            return false;
+        }
+        try {
+            String stamp = new String(Files.readAllBytes(getDir(defaultDir).resolve(id + ".completed")), StandardCharsets.US_ASCII);
+            return stamp.equals(FileStamp.of(target).getETag());
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static Session load(Path dir, String id) throws IOException {
+        Path ranges = dir.resolve(id + ".ranges");
+        Path file = dir.resolve(id + ".part");
+        if (!Files.isRegularFile(ranges) || !Files.isRegularFile(file)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(ranges, StandardCharsets.US_ASCII);
+        try {
+            Session session = new Session(dir, id, Long.parseLong(lines.get(0)));
+            for (int i = 1; i < lines.size(); i++) {
+                String[] range = lines.get(i).split("-");
+                session.add(Long.parseLong(range[0]), Long.parseLong(range[1]));
+            }
+            return Files.size(file) == session.size ? session : null;
+        } catch (RuntimeException e) {
+            // a corrupted session starts over
+            return null;
+        }
+    }
+
+    private static void deleteExpired(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        long expiry = System.currentTimeMillis() - maxAge;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.{ranges,completed}")) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() >= expiry) {
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                if (name.endsWith(".ranges")) {
+                    String id = name.substring(0, name.length() - ".ranges".length());
+                    sessions.remove(dir.resolve(id));
+                    Files.deleteIfExists(dir.resolve(id + ".part"));
+                }
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * An upload in progress.
+     */
+    public static class Session {
+        private final Path key;
+        private final String id;
+        private final long size;
+        private final Path file;
+        private final Path rangesFile;
+        private final Path completedFile;
+        // sorted and disjoint [start, end) ranges received
+        private final List<long[]> ranges = new ArrayList<>();
+        private boolean completed = false;
+        // where the file was moved once complete, null if cancelled
+        private Path published;
+
+        Session(Path dir, String id, long size) {
+            this.key = dir.resolve(id);
+            this.id = id;
+            this.size = size;
+            this.file = dir.resolve(id + ".part");
+            this.rangesFile = dir.resolve(id + ".ranges");
+            this.completedFile = dir.resolve(id + ".completed");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the number of bytes received
+         */
+        public synchronized long getReceived() {
+            long received = 0;
+            for (long[] range : ranges) {
+                received += range[1] - range[0];
+            }
+            return received;
+        }
+
+        /**
+         * @return the number of bytes received from the start of the file, where a sequential upload resumes
+         */
+        public synchronized long getContiguous() {
+            return !ranges.isEmpty() && ranges.get(0)[0] == 0 ? ranges.get(0)[1] : 0;
+        }
+
+        public synchronized boolean isComplete() {
+            return getContiguous() == size;
+        }
+
+        /**
+         * Write a chunk at its offset. Chunks of the same session may be written concurrently.
+         *
+         * @param start the offset of the chunk
+         * @param count the size of the chunk, read from the stream
+         * @throws EOFException if the stream ends before the end of the chunk, which is then not counted as received
+         */
+        public void write(long start, long count, InputStream in) throws IOException {
+            if (start < 0 || count < 0 || start + count > size) {
+                throw new IOException("Chunk " + start + "+" + count + " out of the " + size + " bytes of upload " + id);
+            }
+            byte[] buffer = BufferPool.acquire();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                long position = start;
+                long end = start + count;
+                while (position < end) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                    if (read < 0) {
+                        throw new EOFException("Chunk of upload " + id + " truncated at " + position);
+                    }
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            synchronized (this) {
+                if (completed) {
+                    throw new IOException("Upload " + id + " is already completed");
+                }
+                add(start, start + count);
+                save();
+            }
+        }
+
+        /**
+         * Move the uploaded file into place, once every byte was received, and close the session. The final chunks
+         * of an upload may complete it concurrently: it is moved by the first one only.
+         *
+         * @param target the file to create or replace
+         */
+        public synchronized void complete(Path target) throws IOException {
+            if (completed) {
+                if (target.equals(published)) {
+                    return;
+                }
+                throw new IOException("Upload " + id + " is already closed");
+            }
+            if (!isComplete()) {
+                throw new IOException("Upload " + id + " is incomplete: " + getReceived() + " of " + size + " bytes");
+            }
+            AtomicFiles.publish(file, target);
+            published = target;
+            close();
+            // a lost response to the last chunk does not restart the upload
+            Files.write(completedFile, FileStamp.of(target).getETag().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Abandon the upload, deleting what was received.
+         */
+        public synchronized void cancel() throws IOException {
+            Files.deleteIfExists(file);
+            close();
+        }
+
+        private void close() throws IOException {
+            completed = true;
+            Files.deleteIfExists(rangesFile);
+            synchronized (sessions) {
+                if (sessions.get(key) == this) {
+                    sessions.remove(key);
+                }
+            }
+        }
+
+        private void add(long start, long end) {
+            if (start >= end) {
+                return;
+            }
+            // merged with the ranges it overlaps or touches
+            int i = 0;
+            while (i < ranges.size() && ranges.get(i)[1] < start) {
+                i++;
+            }
+            while (i < ranges.size() && ranges.get(i)[0] <= end) {
+                long[] range = ranges.remove(i);
+                start = Math.min(start, range[0]);
+                end = Math.max(end, range[1]);
+            }
+            ranges.add(i, new long[]{start, end});
+        }
+
+        private void save() throws IOException {
+            StringBuilder content = new StringBuilder().append(size).append('\n');
+            for (long[] range : ranges) {
+                content.append(range[0]).append('-').append(range[1]).append('\n');
+            }
+            Path temporary = rangesFile.resolveSibling(rangesFile.getFileName() + ".tmp");
+            Files.write(temporary, content.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temporary, rangesFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
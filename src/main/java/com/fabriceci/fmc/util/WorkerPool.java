@@ -0,0 +1,59 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shared bounded pool of worker threads for CPU-bound work (e.g. compression), sized with the
+ * {@code workers.parallelism} property (default: the number of processors).
+ * <p>
+ * The pool is created on first use and shared by all the requests, so concurrent archives compete for the same
+ * workers instead of each starting its own threads.
+ */
+public class WorkerPool {
+
+    private static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool pool;
+
+    public static void configure(Properties properties) {
+        String value = properties.getProperty("workers.parallelism");
+        int configured = 0;
+        if (!StringUtils.isEmpty(value)) {
+            try {
+                configured = Integer.parseInt(value.trim());
+            } catch (NumberFormatException ignore) {}
+        }
+        parallelism = configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the shared pool, created with the parallelism configured at that time
+     */
+    public static synchronized ForkJoinPool get() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    public static int getParallelism() {
+        return pool != null ? pool.getParallelism() : parallelism;
+    }
+
+    /**
+     * @return the failure of a task submitted to the pool, unwrapped from the RuntimeExceptions the pool adds around
+     * checked exceptions
+     */
+    public static IOException getCause(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException) return (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        return new IOException(cause);
+    }
+}
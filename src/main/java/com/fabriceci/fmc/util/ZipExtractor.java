@@ -0,0 +1,505 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts a ZIP archive to a folder, inflating the files in parallel.
+ * <p>
+ * The entries are listed from the central directory, the directories of the accepted entries are created first,
+ * then the files are inflated concurrently on the shared {@link WorkerPool} with pooled buffers, a bounded number
+ * of them at a time, each to a temporary file next to its target. The temporary files are published over their
+ * targets only once every entry is inflated, so that a failed extraction leaves the existing files as they were: the
+ * files replaced are kept aside (linked, or copied) until every target is published, and put back if one fails.
+ * The entries extracted are returned in the order of the archive, whatever the order in which they complete.
+ * <p>
+ * Extraction is bounded by {@code extract.maxEntries} entries, {@code extract.maxBytes} bytes in total and a ratio of
+ * {@code extract.maxRatio} between the inflated and compressed size of the entries past their first MB. The limits
+ * are checked while inflating, against the bytes actually produced rather than the sizes declared by the archive:
+ * the first entry over a limit stops all the others, and the files and directories created so far are deleted, while
+ * the existing files are never deleted. Entries which would land outside of the target folder, once links are
+ * resolved, or onto an existing directory, are rejected before anything is written.
+ * <p>
+ * A selection of entries can be extracted alone: entries selected by name only are looked up in the central
+ * directory, without going through the other entries.
+ */
+public class ZipExtractor {
+
+    private static final long DEFAULT_MAX_BYTES = 1073741824L; // ..bytes = 1GB.
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_MAX_RATIO = 100;
+    private static final long RATIO_THRESHOLD = 1048576; // ..bytes = 1MB.
+
+    private static volatile long defaultMaxBytes = DEFAULT_MAX_BYTES;
+    private static volatile int defaultMaxEntries = DEFAULT_MAX_ENTRIES;
+    private static volatile int defaultMaxRatio = DEFAULT_MAX_RATIO;
+
+    /**
+     * Thrown when an archive goes over one of the extraction limits.
+     */
+    public static class LimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when an entry would be extracted outside of the target folder.
+     */
+    public static class UnsafeEntryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsafeEntryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Selects the entries to extract.
+     */
+    public interface Filter {
+        /**
+         * @param entry the entry of the archive
+         * @param target the file or directory it would be extracted to
+         * @throws IOException to stop the extraction
+         */
+        boolean accept(ZipEntry entry, File target) throws IOException;
+    }
+
+    private final File archive;
+    private final File targetDir;
+    private long maxBytes = defaultMaxBytes;
+    private int maxEntries = defaultMaxEntries;
+    private int maxRatio = defaultMaxRatio;
+    private Set<String> names;
+    private List<PathMatcher> matchers;
+
+    public ZipExtractor(File archive, File targetDir) {
+        this.archive = archive;
+        this.targetDir = targetDir;
+    }
+
+    public static void configure(Properties properties) {
+        defaultMaxBytes = parseLong(properties.getProperty("extract.maxBytes"), DEFAULT_MAX_BYTES);
+        defaultMaxEntries = (int) parseLong(properties.getProperty("extract.maxEntries"), DEFAULT_MAX_ENTRIES);
+        defaultMaxRatio = (int) parseLong(properties.getProperty("extract.maxRatio"), DEFAULT_MAX_RATIO);
+    }
+
+    /**
+     * Check the declared sizes of an entry read out of an archive without extracting it against
+     * {@code extract.maxRatio}, the reader being bound to the declared size.
+     *
+     * @throws LimitException if the entry is compressed more than the configured ratio
+     */
+    public static void checkRatio(String name, long size, long compressedSize) throws LimitException {
+        int maxRatio = defaultMaxRatio;
+        if (isOverRatio(size, compressedSize, maxRatio)) {
+            throw new LimitException("Entry compressed more than " + maxRatio + " times: " + name);
+        }
+    }
+
+    private static boolean isOverRatio(long bytes, long compressedSize, int maxRatio) {
+        return maxRatio > 0 && bytes > RATIO_THRESHOLD && compressedSize >= 0 && bytes / maxRatio > compressedSize;
+    }
+
+    /**
+     * Set the maximum number of bytes extracted, 0 for no limit.
+     */
+    public ZipExtractor maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of entries extracted, 0 for no limit.
+     */
+    public ZipExtractor maxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * Set the maximum ratio between the inflated and the compressed size of an entry, 0 for no limit.
+     */
+    public ZipExtractor maxRatio(int maxRatio) {
+        this.maxRatio = maxRatio;
+        return this;
+    }
+
+    /**
+     * Only extract the selected entries: an entry name, a folder name ending with "/" for all its entries, or a
+     * glob pattern (e.g. "*.txt", "docs/**.pdf") matched against the entry names.
+     *
+     * @param selection the names and patterns, null or empty to extract all the entries
+     */
+    public ZipExtractor select(Collection<String> selection) {
+        if (selection == null || selection.isEmpty()) {
+            names = null;
+            matchers = null;
+            return this;
+        }
+        names = new LinkedHashSet<>();
+        matchers = new ArrayList<>();
+        for (String name : selection) {
+            if (name.matches(".*[*?\\[{].*")) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + name));
+            } else {
+                names.add(name);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Extract the accepted entries, replacing the existing files. The first failure stops the extraction, the files
+     * and the directories it created are then deleted.
+     *
+     * @return the entries extracted, in the order of the archive (of the selection for a selection of file names)
+     * @throws java.io.FileNotFoundException if an entry selected by name is not in the archive
+     * @throws LimitException if the archive goes over a limit
+     * @throws UnsafeEntryException if an entry would be extracted outside of the target folder
+     * @throws FileAlreadyExistsException if a file entry would replace an existing directory
+     */
+    public List<ZipEntry> extract(Filter filter) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            List<ZipEntry> extracted = new ArrayList<>();
+            List<File> targets = new ArrayList<>();
+            TreeSet<File> directories = new TreeSet<>();
+            Path root = targetDir.getCanonicalFile().toPath();
+
+            for (ZipEntry entry : getEntries(zipFile)) {
+                File target = new File(targetDir, entry.getName()).getCanonicalFile();
+                if (!target.toPath().startsWith(root)) {
+                    throw new UnsafeEntryException("Entry outside of the target folder: " + entry.getName());
+                }
+                if (target.toPath().equals(root) || !filter.accept(entry, target)) {
+                    continue;
+                }
+                if (!entry.isDirectory() && target.isDirectory()) {
+                    throw new FileAlreadyExistsException(target.getPath(), null, "Directory of the name of the entry " + entry.getName());
+                }
+                if (maxEntries > 0 && extracted.size() >= maxEntries) {
+                    throw new LimitException("More than " + maxEntries + " entries");
+                }
+                extracted.add(entry);
+                targets.add(target);
+                directories.add(entry.isDirectory() ? target : target.getParentFile());
+            }
+
+            Extraction extraction = new Extraction(extracted.size());
+            try {
+                // parents sort before their children: each directory is created once
+                for (File directory : directories) {
+                    extraction.createDirectories(directory);
+                }
+                inflate(zipFile, extracted, targets, extraction);
+                extraction.publish(targets);
+            } catch (IOException | RuntimeException e) {
+                extraction.abort();
+                throw e;
+            }
+            return extracted;
+        }
+    }
+
+    /**
+     * @return the selected entries, in the order of the archive or, when only file names are selected, of the
+     * selection
+     */
+    private List<ZipEntry> getEntries(ZipFile zipFile) throws IOException {
+        List<ZipEntry> selected = new ArrayList<>();
+        if (names != null && matchers.isEmpty()) {
+            boolean files = true;
+            for (String name : names) {
+                files &= !name.endsWith("/");
+            }
+            if (files) {
+                // direct lookups in the central directory
+                for (String name : names) {
+                    ZipEntry entry = zipFile.getEntry(name);
+                    if (entry == null) {
+                        throw new FileNotFoundException(name);
+                    }
+                    selected.add(entry);
+                }
+                return selected;
+            }
+        }
+
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (isSelected(entry.getName())) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+
+    private boolean isSelected(String name) {
+        if (names == null) {
+            return true;
+        }
+        if (names.contains(name)) {
+            return true;
+        }
+        for (int slash = name.indexOf('/'); slash >= 0 && slash < name.length() - 1; slash = name.indexOf('/', slash + 1)) {
+            if (names.contains(name.substring(0, slash + 1))) {
+                return true;
+            }
+        }
+        if (!matchers.isEmpty()) {
+            Path path = Paths.get(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void inflate(ZipFile zipFile, List<ZipEntry> entries, List<File> targets, Extraction extraction) throws IOException {
+        ForkJoinPool pool = WorkerPool.get();
+        int maxInFlight = pool.getParallelism() * 2;
+        Deque<Future<Void>> inFlight = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                ZipEntry entry = entries.get(i);
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                while (inFlight.size() >= maxInFlight) {
+                    await(inFlight.poll());
+                }
+                inFlight.add(pool.submit(new InflateTask(zipFile, entry, targets.get(i), i, extraction)));
+            }
+            while (!inFlight.isEmpty()) {
+                await(inFlight.poll());
+            }
+        } finally {
+            // the tasks still running stop at their next buffer, the archive is closed once none reads it anymore
+            if (!inFlight.isEmpty()) {
+                extraction.stopped = true;
+            }
+            for (Future<Void> future : inFlight) {
+                try {
+                    future.get();
+                } catch (Exception ignore) {}
+            }
+        }
+    }
+
+    private static void await(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting");
+        } catch (ExecutionException e) {
+            throw WorkerPool.getCause(e);
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * State shared by the tasks of an extraction: bytes produced, what was created, and whether to stop.
+     */
+    private class Extraction {
+        final AtomicLong totalBytes = new AtomicLong();
+        final List<File> createdDirectories = new ArrayList<>();
+        final Set<File> createdFiles = new LinkedHashSet<>();
+        // the original content of the files replaced, put back on abort
+        final Map<File, Path> originals = new LinkedHashMap<>();
+        final List<Path> temporaries = Collections.synchronizedList(new ArrayList<Path>());
+        // the inflated temporary file of each entry, by index, read once all the tasks are done
+        final Path[] staged;
+        volatile boolean stopped = false;
+
+        Extraction(int entries) {
+            staged = new Path[entries];
+        }
+
+        void createDirectories(File directory) throws IOException {
+            List<File> missing = new ArrayList<>();
+            for (File parent = directory; parent != null && !parent.exists(); parent = parent.getParentFile()) {
+                missing.add(parent);
+            }
+            for (int i = missing.size() - 1; i >= 0; i--) {
+                File created = missing.get(i);
+                if (!created.mkdir() && !created.isDirectory()) {
+                    throw new IOException("Can not create the directory " + created);
+                }
+                createdDirectories.add(created);
+            }
+        }
+
+        /**
+         * Account for bytes inflated into an entry.
+         * @param entryBytes the bytes inflated so far into the entry
+         */
+        void add(ZipEntry entry, long entryBytes, int count) throws IOException {
+            if (stopped) {
+                throw new InterruptedIOException("Extraction stopped");
+            }
+            long total = totalBytes.addAndGet(count);
+            if (maxBytes > 0 && total > maxBytes) {
+                throw new LimitException("More than " + maxBytes + " bytes");
+            }
+            if (entry.getSize() >= 0 && entryBytes > entry.getSize()) {
+                throw new LimitException("Entry larger than declared: " + entry.getName());
+            }
+            if (isOverRatio(entryBytes, entry.getCompressedSize(), maxRatio)) {
+                throw new LimitException("Entry compressed more than " + maxRatio + " times: " + entry.getName());
+            }
+        }
+
+        /**
+         * Replace the targets by their inflated files, in the order of the archive, then drop the originals.
+         */
+        void publish(List<File> targets) throws IOException {
+            for (int i = 0; i < staged.length; i++) {
+                if (staged[i] == null) {
+                    continue;
+                }
+                File target = targets.get(i);
+                boolean existed = target.exists();
+                if (existed && !createdFiles.contains(target) && !originals.containsKey(target)) {
+                    originals.put(target, keep(target.toPath()));
+                }
+                AtomicFiles.publish(staged[i], target.toPath());
+                if (!existed) {
+                    createdFiles.add(target);
+                }
+            }
+            for (Path original : originals.values()) {
+                original.toFile().delete();
+            }
+        }
+
+        /**
+         * @return a link to the file, or a copy of it, which stays the original once the file is replaced
+         */
+        private Path keep(Path file) throws IOException {
+            Path original = AtomicFiles.createTemporary(file);
+            temporaries.add(original);
+            try {
+                Files.createLink(original, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(file, original, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            return original;
+        }
+
+        /**
+         * Put the replaced files back, delete the temporary files, and the files and directories which were created,
+         * once all the tasks are done.
+         */
+        void abort() {
+            for (Map.Entry<File, Path> original : originals.entrySet()) {
+                try {
+                    Files.move(original.getValue(), original.getKey().toPath(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException ignore) {}
+            }
+            synchronized (temporaries) {
+                for (Path temporary : temporaries) {
+                    temporary.toFile().delete();
+                }
+            }
+            for (File file : createdFiles) {
+                file.delete();
+            }
+            for (int i = createdDirectories.size() - 1; i >= 0; i--) {
+                createdDirectories.get(i).delete();
+            }
+        }
+    }
+
+    private static class InflateTask implements Callable<Void> {
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+        private final File target;
+        private final int index;
+        private final Extraction extraction;
+
+        InflateTask(ZipFile zipFile, ZipEntry entry, File target, int index, Extraction extraction) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+            this.target = target;
+            this.index = index;
+            this.extraction = extraction;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (extraction.stopped) {
+                return null;
+            }
+            // inflated next to the target, which is replaced once all the entries are
+            Path temporary = AtomicFiles.createTemporary(target.toPath());
+            extraction.temporaries.add(temporary);
+            byte[] buffer = BufferPool.acquire();
+            try (InputStream in = zipFile.getInputStream(entry);
+                 OutputStream out = Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long entryBytes = 0;
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    entryBytes += read;
+                    extraction.add(entry, entryBytes, read);
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException | RuntimeException e) {
+                // the other tasks stop as well
+                extraction.stopped = true;
+                throw e;
+            } finally {
+                BufferPool.release(buffer);
+            }
+            extraction.staged[index] = temporary;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.fabriceci.fmc.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Parsed central directory of a ZIP archive: entries by name, with their sizes, CRC and the offset of their data.
+ * <p>
+ * The folders of the archive are derived from the entry names, whether the archive has entries for them or not, so
+ * the archive can be browsed as a folder tree. An entry is read with positional reads on a channel of the archive
+ * (shareable, e.g. from the {@link FileChannelCache}): its local header, then its data inflated as it is read.
+ * Entries with a name leaving the archive root ("..", absolute names) are ignored.
+ * <p>
+ * Zip64 archives are supported: counts, sizes and offsets are read from the Zip64 end of central directory record
+ * and from the Zip64 extra fields of the entries when their 16 or 32-bit fields are saturated.
+ */
+public class ZipIndex {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_LIMIT = 0xffffffffL;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 65535;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int INFLATE_BUFFER_SIZE = 65536; // ..bytes = 64KB.
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, List<Entry>> folders = new LinkedHashMap<>();
+    private final long lastModified;
+
+    private ZipIndex(long lastModified) {
+        this.lastModified = lastModified;
+        folders.put("", new ArrayList<Entry>());
+    }
+
+    /**
+     * Read the central directory of an archive.
+     *
+     * @param size the size of the archive
+     * @param lastModified the modification time of the archive, given to the folders without an entry
+     * @throws ZipException if the archive is not a valid ZIP archive
+     */
+    public static ZipIndex read(FileChannel channel, long size, long lastModified) throws IOException {
+        // the end of central directory record is followed by a comment of up to 64KB
+        int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, size - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE
+                    && i + END_OF_CENTRAL_DIRECTORY_SIZE + (tail.getShort(i + 20) & 0xffff) == tailSize) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long count = tail.getShort(end + 10) & 0xffff;
+        long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+        long directoryEnd = size - tailSize + end;
+
+        // a Zip64 archive has the locator of its Zip64 record right before the end of central directory record
+        int locator = end - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE) {
+            long recordOffset = tail.getLong(locator + 8);
+            if (recordOffset < 0 || recordOffset + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE > directoryEnd) {
+                throw new ZipException("Invalid Zip64 end of central directory locator");
+            }
+            ByteBuffer record = read(channel, recordOffset, ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+            if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("Zip64 end of central directory not found");
+            }
+            count = record.getLong(32);
+            directorySize = record.getLong(40);
+            directoryOffset = record.getLong(48);
+            directoryEnd = recordOffset;
+        }
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > directoryEnd
+                || directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        ZipIndex index = new ZipIndex(lastModified);
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+            int method = directory.getShort(position + 10) & 0xffff;
+            long dosTime = directory.getInt(position + 12) & 0xffffffffL;
+            long crc = directory.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = directory.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long offset = directory.getInt(position + 42) & 0xffffffffL;
+            if (position + CENTRAL_HEADER_SIZE + nameLength + extraLength > directorySize) {
+                throw new ZipException("Invalid central directory entry " + i);
+            }
+
+            byte[] name = new byte[nameLength];
+            directory.position(position + CENTRAL_HEADER_SIZE);
+            directory.get(name);
+
+            // saturated values are in the Zip64 extra field, in this order
+            if (uncompressedSize == ZIP64_LIMIT || compressedSize == ZIP64_LIMIT || offset == ZIP64_LIMIT) {
+                int extra = findExtraField(directory, position + CENTRAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA_ID);
+                if (extra < 0) {
+                    throw new ZipException("Zip64 extra field not found: " + new String(name, StandardCharsets.UTF_8));
+                }
+                int extraEnd = extra + 4 + (directory.getShort(extra + 2) & 0xffff);
+                int field = extra + 4;
+                if (uncompressedSize == ZIP64_LIMIT && field + 8 <= extraEnd) {
+                    uncompressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_LIMIT && field + 8 <= extraEnd) {
+                    compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (offset == ZIP64_LIMIT && field + 8 <= extraEnd) {
+                    offset = directory.getLong(field);
+                }
+            }
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            index.add(new Entry(new String(name, StandardCharsets.UTF_8), method, fromDosTime(dosTime), crc,
+                    compressedSize, uncompressedSize, offset));
+        }
+        return index;
+    }
+
+    /**
+     * @param name the name of an entry, ending with "/" for a folder
+     * @return the entry, or null if the archive has no such entry
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @param folder the name of a folder ending with "/", or "" for the root of the archive
+     * @return the files and folders of the folder, in the order of the archive, or null if there is no such folder
+     */
+    public List<Entry> list(String folder) {
+        List<Entry> children = folders.get(folder);
+        return children != null ? Collections.unmodifiableList(children) : null;
+    }
+
+    /**
+     * @return the number of files and folders of the archive
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Open the content of a file of the archive. The stream stops at the size declared by the central directory and
+     * checks the CRC before it returns the last bytes: a {@link ZipException} is thrown instead if the entry inflates
+     * to more or fewer bytes, or to other bytes.
+     *
+     * @param channel a channel on the archive, only used for positional reads
+     */
+    public InputStream openStream(FileChannel channel, Entry entry) throws IOException {
+        if (entry.isDirectory()) {
+            throw new IOException("Not a file: " + entry.getName());
+        }
+        ByteBuffer header = read(channel, entry.offset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header: " + entry.getName());
+        }
+        long dataOffset = entry.offset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+
+        switch (entry.method) {
+            case METHOD_STORED:
+                return new CheckedEntryStream(new RegionInputStream(channel, dataOffset, entry.size, false), entry);
+            case METHOD_DEFLATED:
+                // the raw inflater may need one byte past the data to finish
+                final Inflater inflater = new Inflater(true);
+                return new CheckedEntryStream(new InflaterInputStream(new RegionInputStream(channel, dataOffset, entry.compressedSize, true),
+                        inflater, INFLATE_BUFFER_SIZE) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (closed) return;
+                        closed = true;
+                        super.close();
+                        inflater.end();
+                    }
+                }, entry);
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.getName());
+        }
+    }
+
+    /**
+     * @return the position of the header of an extra field, or -1 if there is no such field
+     */
+    private static int findExtraField(ByteBuffer buffer, int position, int length, int id) {
+        int end = position + length;
+        while (position + 4 <= end) {
+            int size = buffer.getShort(position + 2) & 0xffff;
+            if (position + 4 + size > end) {
+                break;
+            }
+            if ((buffer.getShort(position) & 0xffff) == id) {
+                return position;
+            }
+            position += 4 + size;
+        }
+        return -1;
+    }
+
+    private void add(Entry entry) {
+        String name = entry.getName();
+        if (name.isEmpty() || name.startsWith("/") || name.contains("\\") || name.equals("..") || name.startsWith("../")
+                || name.contains("/../") || name.endsWith("/..") || name.contains("//")) {
+            return;
+        }
+        Entry existing = entries.get(name);
+        if (existing != null && existing.offset >= 0) {
+            // duplicate names: the first entry wins, as with ZipFile
+            return;
+        }
+
+        addFolder(getParent(name));
+        List<Entry> siblings = folders.get(getParent(name));
+        if (existing != null) {
+            // a folder known from its content, it keeps its place with the metadata of its own entry
+            siblings.set(siblings.indexOf(existing), entry);
+        } else {
+            siblings.add(entry);
+            if (entry.isDirectory()) {
+                folders.put(name, new ArrayList<Entry>());
+            }
+        }
+        entries.put(name, entry);
+    }
+
+    private void addFolder(String folder) {
+        if (folders.containsKey(folder)) {
+            return;
+        }
+        addFolder(getParent(folder));
+        Entry entry = new Entry(folder, METHOD_STORED, lastModified, 0, 0, 0, -1);
+        folders.get(getParent(folder)).add(entry);
+        folders.put(folder, new ArrayList<Entry>());
+        entries.put(folder, entry);
+    }
+
+    /**
+     * @return the name of the parent folder of an entry, "" for the root
+     */
+    private static String getParent(String name) {
+        int end = name.endsWith("/") ? name.length() - 1 : name.length();
+        int slash = name.lastIndexOf('/', end - 1);
+        return slash < 0 ? "" : name.substring(0, slash + 1);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated archive");
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static long fromDosTime(long dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f) - 1,
+                (int) ((dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f),
+                (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * A file or folder of the archive.
+     */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long time;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+        Entry(String name, int method, long time, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the path of the entry in the archive, ending with "/" for a folder
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the last path element of the entry, without the trailing "/" of a folder
+         */
+        public String getFileName() {
+            int end = isDirectory() ? name.length() - 1 : name.length();
+            return name.substring(name.lastIndexOf('/', end - 1) + 1, end);
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * @return the modification time in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Counts and checksums the content of an entry against the central directory.
+     */
+    private static class CheckedEntryStream extends FilterInputStream {
+        private final Entry entry;
+        private final CRC32 crc = new CRC32();
+        private long count = 0;
+
+        CheckedEntryStream(InputStream in, Entry entry) {
+            super(in);
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int read = in.read(b, off, len);
+            if (read < 0) {
+                if (count != entry.size) {
+                    throw new ZipException("Entry shorter than declared: " + entry.name);
+                }
+                if (crc.getValue() != entry.crc) {
+                    throw new ZipException("Invalid CRC: " + entry.name);
+                }
+                return -1;
+            }
+            count += read;
+            if (count > entry.size) {
+                throw new ZipException("Entry larger than declared: " + entry.name);
+            }
+            crc.update(b, off, read);
+            // the last bytes are only returned once checked
+            if (count == entry.size && crc.getValue() != entry.crc) {
+                throw new ZipException("Invalid CRC: " + entry.name);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read through, to count and checksum what is skipped
+            byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read < 0) break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a region of a channel with positional reads.
+     */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+        private boolean padding;
+
+        RegionInputStream(FileChannel channel, long position, long count, boolean padding) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = count;
+            this.padding = padding;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining <= 0) {
+                if (!padding) return -1;
+                padding = false;
+                b[off] = 0;
+                return 1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (read < 0) {
+                throw new EOFException("Truncated archive");
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.fabriceci.fmc.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Bounded cache of the parsed central directories of the archives being browsed.
+ * <p>
+ * An index is kept with the stamp of its archive and used only as long as the archive keeps that stamp (the stamp
+ * of the {@link FileChannelCache} handle the archive is read with), so listing a folder of an archive or reading one
+ * of its files does not parse the central directory again. The cache holds the indexes of at most
+ * {@code zipIndex.cacheSize} archives (0 disables it).
+ */
+public class ZipIndexCache {
+
+    private static final int DEFAULT_SIZE = 16;
+
+    private static volatile int maxSize = DEFAULT_SIZE;
+
+    private static final Map<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, ZipIndexCache.Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public static void configure(Properties properties) {
+        String value = properties.getProperty("zipIndex.cacheSize");
+        int size = DEFAULT_SIZE;
+        if (!StringUtils.isEmpty(value)) {
+            try {
+                size = Integer.parseInt(value.trim());
+            } catch (NumberFormatException ignore) {}
+        }
+        maxSize = size;
+    }
+
+    /**
+     * Get the index of an archive, parsing its central directory if it is not cached for the current version of
+     * the archive.
+     *
+     * @param path the archive
+     * @param handle an open handle on the archive, the index is read with its channel
+     * @throws java.util.zip.ZipException if the file is not a valid ZIP archive
+     */
+    public static ZipIndex get(Path path, FileChannelCache.Handle handle) throws IOException {
+        path = path.toAbsolutePath();
+        FileStamp stamp = handle.getStamp();
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.stamp.equals(stamp)) {
+                return entry.index;
+            }
+        }
+
+        // parsed out of the lock, concurrent readers of a new archive may parse it twice
+        ZipIndex index = ZipIndex.read(handle.getChannel(), stamp.getSize(), stamp.getLastModified());
+        if (maxSize > 0) {
+            synchronized (entries) {
+                entries.put(path, new Entry(stamp, index));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Drop the index of an archive, e.g. after it was written.
+     */
+    public static void invalidate(Path path) {
+        synchronized (entries) {
+            entries.remove(path.toAbsolutePath());
+        }
+    }
+
+    private static class Entry {
+        final FileStamp stamp;
+        final ZipIndex index;
+
+        Entry(FileStamp stamp, ZipIndex index) {
+            this.stamp = stamp;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,667 @@
+package com.fabriceci.fmc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive to a stream, deflating the files in parallel.
+ * <p>
+ * Files are cut in chunks of 1MB which are deflated concurrently on the shared {@link WorkerPool}, each chunk
+ * primed with the last 32KB of the previous one as preset dictionary so the ratio stays close to a serial deflate.
+ * Chunks but the last of a file end with a sync flush, so the compressed chunks simply concatenate into one deflate
+ * stream, and the CRC-32 of the chunks are combined. The chunks are written in order, with a bounded number of
+ * chunks in flight so the memory used does not depend on the size of the files.
+ * <p>
+ * The sizes and CRC of single-chunk files are known before their local header is written, larger files are followed
+ * by a data descriptor.
+ * <p>
+ * Files which do not compress are STORED: files of a type listed in {@code zip.store.mimeTypes} (a trailing "/"
+ * matches a whole type), and files whose first 64KB deflated at the fastest level save less than
+ * {@code zip.probe.minSaving} percent. Their chunks are only checksummed in parallel, then the file is copied as is.
+ * Other files are deflated at level {@code zip.level}.
+ * <p>
+ * Archives and files over 4GB and archives of more than 65535 files are written with the Zip64 extensions: files
+ * which may reach 4GB once compressed get a Zip64 extra field in their local header (and 64-bit sizes in their data
+ * descriptor), the central directory gets one for the sizes and offsets which do not fit in 32 bits, and is followed
+ * by a Zip64 end of central directory record when its own count, size or offset do not fit.
+ */
+public class ZipStreamWriter implements ArchiveWriter {
+
+    private static final int CHUNK_SIZE = 1048576; // ..bytes = 1MB.
+    private static final int DICTIONARY_SIZE = 32768; // ..bytes = 32KB, the deflate window.
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long ZIP64_LIMIT = 0xffffffffL;
+    private static final int ZIP64_COUNT_LIMIT = 0xffff;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int PROBE_SIZE = 65536; // ..bytes = 64KB.
+
+    private static final String DEFAULT_STORE_MIME_TYPES = "video/,audio/mpeg,audio/mp4,audio/ogg,audio/webm,image/jpeg,"
+            + "image/png,image/gif,image/webp,application/zip,application/gzip,application/x-gzip,application/x-bzip2,"
+            + "application/x-7z-compressed,application/x-rar-compressed";
+    private static final int DEFAULT_MIN_SAVING = 5;
+
+    private static volatile int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private static volatile String[] storeMimeTypes = DEFAULT_STORE_MIME_TYPES.split(",");
+    private static volatile int minSaving = DEFAULT_MIN_SAVING;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // Deflaters of the worker threads, by level (-1 to 9): a level can not be changed without flushing.
+    private static final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[11];
+        }
+    };
+
+    private final OutputStream out;
+    private final int level;
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+
+    private final Deque<Chunk> inFlight = new ArrayDeque<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] header = new byte[128];
+    private final ArchiveStats stats = new ArchiveStats();
+    private long offset = 0;
+    private boolean finished = false;
+
+    public static void configure(Properties properties) {
+        int level = parseInt(properties.getProperty("zip.level"), Deflater.DEFAULT_COMPRESSION);
+        defaultLevel = level >= -1 && level <= 9 ? level : Deflater.DEFAULT_COMPRESSION;
+        String types = properties.getProperty("zip.store.mimeTypes");
+        storeMimeTypes = (StringUtils.isEmpty(types) ? DEFAULT_STORE_MIME_TYPES : types).split("\\s*,\\s*");
+        minSaving = parseInt(properties.getProperty("zip.probe.minSaving"), DEFAULT_MIN_SAVING);
+    }
+
+    /**
+     * @return the settings which the bytes of an archive depend on: the level, the stored types and the minimal saving
+     */
+    public static String getConfiguration() {
+        return defaultLevel + "\n" + Arrays.toString(storeMimeTypes) + "\n" + minSaving;
+    }
+
+    /**
+     * Write with the configured deflate level.
+     */
+    public ZipStreamWriter(OutputStream out) {
+        this(out, defaultLevel);
+    }
+
+    /**
+     * @param out the stream to write the archive to, it is neither flushed nor closed
+     * @param level the deflate level, from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ZipStreamWriter(OutputStream out, int level) {
+        this.out = out;
+        this.level = level;
+        this.pool = WorkerPool.get();
+        this.maxInFlight = pool.getParallelism() * 2;
+    }
+
+    /**
+     * Add a file to the archive. The file is read and deflated in the background, it must not be modified until
+     * the archive is finished.
+     */
+    @Override
+    public void addFile(String name, File file) throws IOException {
+        Entry entry = new Entry(name, file.toPath(), file.lastModified());
+        long length = file.length();
+        int chunks = (int) Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        entry.chunks = chunks;
+        entry.method = isCompressible(name, entry.path, length) ? METHOD_DEFLATED : METHOD_STORED;
+        // deflate adds at most a few bytes per 16KB to data which does not compress
+        entry.zip64 = length + (length >> 10) + 1024 >= ZIP64_LIMIT;
+
+        for (int i = 0; i < chunks; i++) {
+            while (inFlight.size() >= maxInFlight) {
+                writeNextChunk();
+            }
+            long position = (long) i * CHUNK_SIZE;
+            int count = (int) Math.min(CHUNK_SIZE, length - position);
+            boolean store = entry.method == METHOD_STORED;
+            inFlight.add(new Chunk(entry, i, pool.submit(new ChunkTask(entry.path, position, count, i == chunks - 1, level, store, stats))));
+        }
+    }
+
+    /**
+     * @return the statistics of the archive, complete once it is finished
+     */
+    @Override
+    public ArchiveStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Decide whether a file is worth deflating, from its type then from a probe of its first bytes.
+     */
+    private boolean isCompressible(String name, Path path, long length) throws IOException {
+        if (level == 0) {
+            return false;
+        }
+        String mimeType = FileManagerUtils.getMimeTypeByExt(FileUtils.getExtension(name));
+        if (mimeType != null) {
+            for (String type : storeMimeTypes) {
+                if (type.endsWith("/") ? mimeType.startsWith(type) : mimeType.equals(type)) {
+                    return false;
+                }
+            }
+        }
+        if (length < PROBE_SIZE) {
+            return true;
+        }
+
+        long cpuStart = cpuTime();
+        byte[] input = BufferPool.acquire(PROBE_SIZE);
+        byte[] output = BufferPool.acquire(PROBE_SIZE);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            int read;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                read = readFully(channel, input, 0, PROBE_SIZE);
+            }
+            deflater.setInput(input, 0, read);
+            deflater.finish();
+            int deflated = 0;
+            while (!deflater.finished() && deflated < read) {
+                deflated += deflater.deflate(output, 0, output.length);
+            }
+            return (long) deflated * 100 < (long) read * (100 - minSaving);
+        } finally {
+            deflater.end();
+            BufferPool.release(input);
+            BufferPool.release(output);
+            stats.addCpuTime(cpuTime() - cpuStart);
+        }
+    }
+
+    /**
+     * Write the pending chunks and the central directory. The stream is not closed.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) return;
+        try {
+            while (!inFlight.isEmpty()) {
+                writeNextChunk();
+            }
+            writeCentralDirectory();
+            finished = true;
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancel the pending chunks, after an error.
+     */
+    @Override
+    public void abort() {
+        for (Chunk chunk : inFlight) {
+            chunk.future.cancel(false);
+            if (chunk.future.isDone() && !chunk.future.isCancelled()) {
+                try {
+                    chunk.future.get().release();
+                } catch (InterruptedException | ExecutionException ignore) {}
+            }
+        }
+        inFlight.clear();
+        finished = true;
+    }
+
+    private void writeNextChunk() throws IOException {
+        Chunk chunk = inFlight.poll();
+        Deflated deflated;
+        try {
+            deflated = chunk.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            inFlight.addFirst(chunk);
+            throw new InterruptedIOException("Interrupted while compressing " + chunk.entry.name);
+        } catch (ExecutionException e) {
+            throw WorkerPool.getCause(e);
+        }
+
+        try {
+            Entry entry = chunk.entry;
+            if (entry.method == METHOD_STORED) {
+                writeStoredChunk(entry, chunk.index, deflated);
+                return;
+            }
+            if (chunk.index == 0) {
+                entry.offset = offset;
+                entry.crc = deflated.crc;
+                if (entry.chunks == 1) {
+                    entry.compressedSize = deflated.length;
+                    entry.size = deflated.rawLength;
+                } else {
+                    entry.flags |= FLAG_DATA_DESCRIPTOR;
+                }
+                writeLocalHeader(entry);
+            } else {
+                entry.crc = CrcUtils.combine(entry.crc, deflated.crc, deflated.rawLength);
+            }
+            out.write(deflated.data, 0, deflated.length);
+            offset += deflated.length;
+
+            if (entry.chunks > 1) {
+                entry.compressedSize += deflated.length;
+                entry.size += deflated.rawLength;
+            }
+            if (chunk.index == entry.chunks - 1) {
+                if ((entry.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+                    writeDataDescriptor(entry);
+                }
+                addEntry(entry);
+            }
+        } finally {
+            deflated.release();
+        }
+    }
+
+    /**
+     * The chunks of a stored file only carry their checksum: once all of them are known the header is written,
+     * followed by the content of the file.
+     */
+    private void writeStoredChunk(Entry entry, int index, Deflated checksum) throws IOException {
+        entry.crc = index == 0 ? checksum.crc : CrcUtils.combine(entry.crc, checksum.crc, checksum.rawLength);
+        entry.size += checksum.rawLength;
+        if (index < entry.chunks - 1) {
+            return;
+        }
+
+        entry.compressedSize = entry.size;
+        entry.offset = offset;
+        writeLocalHeader(entry);
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            TransferUtils.transfer(channel, 0, entry.size, out);
+        }
+        offset += entry.size;
+        addEntry(entry);
+    }
+
+    private void addEntry(Entry entry) {
+        entries.add(entry);
+        stats.addEntry(entry.method == METHOD_STORED, entry.size);
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        int i = 0;
+        i = putInt(header, i, LOCAL_HEADER_SIGNATURE);
+        i = putShort(header, i, entry.zip64 ? VERSION_ZIP64 : VERSION);
+        i = putShort(header, i, entry.flags);
+        i = putShort(header, i, entry.method);
+        i = putInt(header, i, entry.dosTime);
+        i = putInt(header, i, descriptor ? 0 : entry.crc);
+        if (entry.zip64) {
+            // the sizes are in the extra field, zero until the data descriptor
+            i = putInt(header, i, ZIP64_LIMIT);
+            i = putInt(header, i, ZIP64_LIMIT);
+            i = putShort(header, i, entry.name.length);
+            i = putShort(header, i, 20);
+            write(header, i);
+            write(entry.name, entry.name.length);
+            i = 0;
+            i = putShort(header, i, ZIP64_EXTRA_ID);
+            i = putShort(header, i, 16);
+            i = putLong(header, i, descriptor ? 0 : entry.size);
+            i = putLong(header, i, descriptor ? 0 : entry.compressedSize);
+            write(header, i);
+            return;
+        }
+        i = putInt(header, i, descriptor ? 0 : entry.compressedSize);
+        i = putInt(header, i, descriptor ? 0 : entry.size);
+        i = putShort(header, i, entry.name.length);
+        i = putShort(header, i, 0);
+        write(header, i);
+        write(entry.name, entry.name.length);
+    }
+
+    private void writeDataDescriptor(Entry entry) throws IOException {
+        int i = 0;
+        i = putInt(header, i, DATA_DESCRIPTOR_SIGNATURE);
+        i = putInt(header, i, entry.crc);
+        if (entry.zip64) {
+            i = putLong(header, i, entry.compressedSize);
+            i = putLong(header, i, entry.size);
+        } else {
+            i = putInt(header, i, entry.compressedSize);
+            i = putInt(header, i, entry.size);
+        }
+        write(header, i);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = offset;
+        for (Entry entry : entries) {
+            // the values which do not fit in 32 bits are in the Zip64 extra field, in this order
+            boolean largeSize = entry.size >= ZIP64_LIMIT;
+            boolean largeCompressedSize = entry.compressedSize >= ZIP64_LIMIT;
+            boolean largeOffset = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+            boolean zip64 = extraLength > 0 || entry.zip64;
+
+            int i = 0;
+            i = putInt(header, i, CENTRAL_HEADER_SIGNATURE);
+            i = putShort(header, i, zip64 ? VERSION_ZIP64 : VERSION);
+            i = putShort(header, i, zip64 ? VERSION_ZIP64 : VERSION);
+            i = putShort(header, i, entry.flags);
+            i = putShort(header, i, entry.method);
+            i = putInt(header, i, entry.dosTime);
+            i = putInt(header, i, entry.crc);
+            i = putInt(header, i, largeCompressedSize ? ZIP64_LIMIT : entry.compressedSize);
+            i = putInt(header, i, largeSize ? ZIP64_LIMIT : entry.size);
+            i = putShort(header, i, entry.name.length);
+            i = putShort(header, i, extraLength > 0 ? 4 + extraLength : 0); // extra field length
+            i = putShort(header, i, 0); // comment length
+            i = putShort(header, i, 0); // disk number
+            i = putShort(header, i, 0); // internal attributes
+            i = putInt(header, i, 0); // external attributes
+            i = putInt(header, i, largeOffset ? ZIP64_LIMIT : entry.offset);
+            write(header, i);
+            write(entry.name, entry.name.length);
+
+            if (extraLength > 0) {
+                i = 0;
+                i = putShort(header, i, ZIP64_EXTRA_ID);
+                i = putShort(header, i, extraLength);
+                if (largeSize) i = putLong(header, i, entry.size);
+                if (largeCompressedSize) i = putLong(header, i, entry.compressedSize);
+                if (largeOffset) i = putLong(header, i, entry.offset);
+                write(header, i);
+            }
+        }
+
+        long end = offset;
+        long size = end - start;
+        boolean zip64 = entries.size() >= ZIP64_COUNT_LIMIT || size >= ZIP64_LIMIT || start >= ZIP64_LIMIT;
+        if (zip64) {
+            int i = 0;
+            i = putInt(header, i, ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            i = putLong(header, i, 44); // size of the rest of the record
+            i = putShort(header, i, VERSION_ZIP64);
+            i = putShort(header, i, VERSION_ZIP64);
+            i = putInt(header, i, 0); // disk number
+            i = putInt(header, i, 0); // disk of the central directory
+            i = putLong(header, i, entries.size());
+            i = putLong(header, i, entries.size());
+            i = putLong(header, i, size);
+            i = putLong(header, i, start);
+
+            i = putInt(header, i, ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE);
+            i = putInt(header, i, 0); // disk of the Zip64 end of central directory
+            i = putLong(header, i, end);
+            i = putInt(header, i, 1); // number of disks
+            write(header, i);
+        }
+
+        int i = 0;
+        i = putInt(header, i, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        i = putShort(header, i, 0);
+        i = putShort(header, i, 0);
+        i = putShort(header, i, zip64 ? ZIP64_COUNT_LIMIT : entries.size());
+        i = putShort(header, i, zip64 ? ZIP64_COUNT_LIMIT : entries.size());
+        i = putInt(header, i, zip64 ? ZIP64_LIMIT : size);
+        i = putInt(header, i, zip64 ? ZIP64_LIMIT : start);
+        i = putShort(header, i, 0);
+        write(header, i);
+        stats.setArchiveBytes(offset);
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        offset += length;
+    }
+
+    private static int putShort(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) value;
+        bytes[index + 1] = (byte) (value >> 8);
+        return index + 2;
+    }
+
+    private static int putInt(byte[] bytes, int index, long value) {
+        bytes[index] = (byte) value;
+        bytes[index + 1] = (byte) (value >> 8);
+        bytes[index + 2] = (byte) (value >> 16);
+        bytes[index + 3] = (byte) (value >> 24);
+        return index + 4;
+    }
+
+    private static int putLong(byte[] bytes, int index, long value) {
+        putInt(bytes, index, value);
+        return putInt(bytes, index + 4, value >>> 32);
+    }
+
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (StringUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the number of bytes read, less than asked if the file was truncated meanwhile
+     */
+    private static int readFully(FileChannel channel, byte[] buffer, long position, int count) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) break;
+        }
+        return byteBuffer.position();
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final Path path;
+        final long dosTime;
+        int method;
+        int flags = FLAG_UTF8;
+        boolean zip64;
+        int chunks;
+        long offset;
+        long crc;
+        long compressedSize;
+        long size;
+
+        Entry(String name, Path path, long lastModified) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.path = path;
+            this.dosTime = toDosTime(lastModified);
+        }
+    }
+
+    private static class Chunk {
+        final Entry entry;
+        final int index;
+        final Future<Deflated> future;
+
+        Chunk(Entry entry, int index, Future<Deflated> future) {
+            this.entry = entry;
+            this.index = index;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A deflated chunk, its buffer comes from the {@link BufferPool}. The chunks of stored files only have a
+     * checksum.
+     */
+    private static class Deflated {
+        final byte[] data;
+        final int length;
+        final int rawLength;
+        final long crc;
+
+        Deflated(byte[] data, int length, int rawLength, long crc) {
+            this.data = data;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.crc = crc;
+        }
+
+        void release() {
+            BufferPool.release(data);
+        }
+    }
+
+    private static class ChunkTask implements Callable<Deflated> {
+        private final Path path;
+        private final long position;
+        private final int count;
+        private final boolean last;
+        private final int level;
+        private final boolean store;
+        private final ArchiveStats stats;
+
+        ChunkTask(Path path, long position, int count, boolean last, int level, boolean store, ArchiveStats stats) {
+            this.path = path;
+            this.position = position;
+            this.count = count;
+            this.last = last;
+            this.level = level;
+            this.store = store;
+            this.stats = stats;
+        }
+
+        @Override
+        public Deflated call() throws IOException {
+            long cpuStart = cpuTime();
+            try {
+                return store ? checksum() : deflate();
+            } finally {
+                stats.addCpuTime(cpuTime() - cpuStart);
+            }
+        }
+
+        private Deflated checksum() throws IOException {
+            byte[] input = BufferPool.acquire(CHUNK_SIZE);
+            try {
+                int read;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    read = readFully(channel, input, position, count);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(input, 0, read);
+                return new Deflated(null, 0, read, crc.getValue());
+            } finally {
+                BufferPool.release(input);
+            }
+        }
+
+        private Deflated deflate() throws IOException {
+            byte[] input = BufferPool.acquire(CHUNK_SIZE);
+            byte[] dictionary = null;
+            try {
+                int dictionaryLength = (int) Math.min(DICTIONARY_SIZE, position);
+                int read;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    read = readFully(channel, input, position, count);
+                    if (dictionaryLength > 0) {
+                        dictionary = BufferPool.acquire(DICTIONARY_SIZE);
+                        dictionaryLength = readFully(channel, dictionary, position - dictionaryLength, dictionaryLength);
+                    }
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(input, 0, read);
+
+                Deflater deflater = getDeflater(level);
+                deflater.reset();
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary, 0, dictionaryLength);
+                }
+                deflater.setInput(input, 0, read);
+                if (last) {
+                    deflater.finish();
+                }
+
+                byte[] output = BufferPool.acquire(CHUNK_SIZE);
+                int length = 0;
+                while (true) {
+                    if (length == output.length) {
+                        // incompressible data, grow the buffer (it is not pooled anymore)
+                        byte[] grown = new byte[output.length + output.length / 8];
+                        System.arraycopy(output, 0, grown, 0, length);
+                        BufferPool.release(output);
+                        output = grown;
+                    }
+                    int space = output.length - length;
+                    int deflated = deflater.deflate(output, length, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    length += deflated;
+                    if (last ? deflater.finished() : deflated < space) {
+                        break;
+                    }
+                }
+                return new Deflated(output, length, read, crc.getValue());
+            } finally {
+                BufferPool.release(input);
+                BufferPool.release(dictionary);
+            }
+        }
+
+        private static Deflater getDeflater(int level) {
+            Deflater[] local = deflaters.get();
+            Deflater deflater = local[level + 1];
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+                local[level + 1] = deflater;
+            }
+            return deflater;
+        }
+
+    }
+}
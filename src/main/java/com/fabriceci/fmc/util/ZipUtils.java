@@ -2,10 +2,11 @@ package com.fabriceci.fmc.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 
 public class ZipUtils {
 
@@ -35,47 +36,67 @@ public class ZipUtils {
      */
 
     static public byte[] zipFolder(File dir) throws IOException {
-
-        ZipOutputStream zout = null;
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        zipFolder(dir, bout);
+        return bout.toByteArray();
+    }
+
+    /**
+     * Write a ZIP archive of the given folder to the given stream, entry by entry: the memory used does not depend
+     * on the size of the folder and the first bytes are written right away. The files are deflated in parallel on
+     * the shared worker pool, at the configured level. The stream is not closed.
+     *
+     * @return the statistics of the archive
+     */
+    static public ArchiveStats zipFolder(File dir, OutputStream out) throws IOException {
+        return zipFolder(dir, out, new ZipStreamWriter(out));
+    }
+
+    /**
+     * @param level the deflate level, from 0 (store all the files) to 9
+     */
+    static public ArchiveStats zipFolder(File dir, OutputStream out, int level) throws IOException {
+        return zipFolder(dir, out, new ZipStreamWriter(out, level));
+    }
 
+    private static ArchiveStats zipFolder(File dir, OutputStream out, ZipStreamWriter writer) throws IOException {
+        return writeArchive(Collections.singletonMap(dir.getName(), dir), writer, out);
+    }
+
+    /**
+     * Write an archive of several files and folders to the given stream, with the given writer. Hidden files are
+     * skipped. The stream is flushed, not closed.
+     *
+     * @param files the files and folders, by their path in the archive
+     * @return the statistics of the archive
+     */
+    static public ArchiveStats writeArchive(Map<String, File> files, ArchiveWriter writer, OutputStream out) throws IOException {
         try {
-            zout = new ZipOutputStream(bout);
-            // addFolderToZip("", dir, zout);
-            zipFile(dir, dir.getName(), zout);
-            zout.close();
-            return bout.toByteArray();
-        } finally {
-            if(zout != null){
-                zout.flush();
-                zout.close();
-            }
-            if(bout != null){
-                bout.close();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                zipFile(file.getValue(), file.getKey(), writer);
             }
+            writer.finish();
+            out.flush();
+            return writer.getStats();
+        } finally {
+            writer.abort();
         }
     }
 
-    private static void zipFile(File fileToZip, String fileName, ZipOutputStream zipOut) throws IOException {
+    private static void zipFile(File fileToZip, String fileName, ArchiveWriter writer) throws IOException {
         if (fileToZip.isHidden()) {
             return;
         }
         if (fileToZip.isDirectory()) {
             File[] children = fileToZip.listFiles();
+            // same archive for the same tree, whatever the order of the listing
+            Arrays.sort(children);
             for (File childFile : children) {
-                zipFile(childFile, fileName + "/" + childFile.getName(), zipOut);
+                zipFile(childFile, fileName + "/" + childFile.getName(), writer);
             }
             return;
         }
-        FileInputStream fis = new FileInputStream(fileToZip);
-        ZipEntry zipEntry = new ZipEntry(fileName);
-        zipOut.putNextEntry(zipEntry);
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-            zipOut.write(bytes, 0, length);
-        }
-        fis.close();
+        writer.addFile(fileName, fileToZip);
     }
 
     /*
@@ -0,0 +1,63 @@
+package com.fabriceci;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a file without writing its blocks of zeros, which are left as holes: multi-GB archives of sparse files
+ * take almost no disk space.
+ */
+public class SparseFileOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long position;
+
+    public SparseFileOutputStream(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            int count = Math.min(BLOCK_SIZE, end - off);
+            if (!isZeros(b, off, count)) {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, count);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position() - off);
+                }
+            }
+            position += count;
+            off += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file.length() < position) {
+            file.setLength(position);
+        }
+        file.close();
+    }
+
+    private static boolean isZeros(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (b[i] != 0) return false;
+        }
+        return true;
+    }
+}
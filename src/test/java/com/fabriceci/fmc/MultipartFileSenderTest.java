@@ -0,0 +1,151 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.FileStamp;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class MultipartFileSenderTest {
+
+    // not on a second boundary: HTTP dates are truncated to the second
+    private static final long LAST_MODIFIED = 1500000000123L;
+    private static final long LAST_MODIFIED_HTTP = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void initialize() throws Exception {
+        file = temporaryFolder.newFile("content.bin");
+        Files.write(file.toPath(), new byte[1000]);
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(LAST_MODIFIED));
+    }
+
+    @Test
+    public void validatorsTest() throws Exception {
+
+        HttpServletResponse response = serve(new HashMap<String, Object>());
+        ArgumentCaptor<String> eTag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), eTag.capture());
+        verify(response).setDateHeader("Last-Modified", LAST_MODIFIED_HTTP);
+        verify(response, never()).setStatus(anyInt());
+        assertEquals(FileStamp.of(file.toPath()).getETag(), eTag.getValue());
+        assertTrue(eTag.getValue().startsWith("\"") && eTag.getValue().endsWith("\""));
+
+        // replaced by a file of the same size and modification time: another inode, another tag
+        File other = temporaryFolder.newFile("other.bin");
+        Files.write(other.toPath(), new byte[1000]);
+        Files.setLastModifiedTime(other.toPath(), FileTime.fromMillis(LAST_MODIFIED));
+        Files.move(other.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertNotEquals(eTag.getValue(), FileStamp.of(file.toPath()).getETag());
+    }
+
+    @Test
+    public void ifNoneMatchTest() throws Exception {
+
+        String eTag = FileStamp.of(file.toPath()).getETag();
+        HttpServletResponse response = serve(headers("If-None-Match", "\"other\", " + eTag));
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response).setHeader("ETag", eTag);
+
+        // a weak comparison
+        response = serve(headers("If-None-Match", "W/" + eTag));
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        response = serve(headers("If-None-Match", "\"other\""));
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        // If-Modified-Since is ignored when If-None-Match is sent
+        Map<String, Object> headers = headers("If-None-Match", "\"other\"");
+        headers.put("If-Modified-Since", LAST_MODIFIED_HTTP);
+        response = serve(headers);
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Test
+    public void ifModifiedSinceTest() throws Exception {
+
+        // the date sent back is the truncated Last-Modified, which is older than the file
+        HttpServletResponse response = serve(headers("If-Modified-Since", LAST_MODIFIED_HTTP));
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response).setDateHeader("Last-Modified", LAST_MODIFIED_HTTP);
+
+        response = serve(headers("If-Modified-Since", LAST_MODIFIED_HTTP - 1000));
+        verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    @Test
+    public void ifMatchTest() throws Exception {
+
+        String eTag = FileStamp.of(file.toPath()).getETag();
+        HttpServletResponse response = serve(headers("If-Match", "\"other\""));
+        verify(response).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+
+        // If-Match uses the strong comparison
+        response = serve(headers("If-Match", "W/" + eTag));
+        verify(response).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+
+        response = serve(headers("If-Match", eTag));
+        verify(response, never()).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+        response = serve(headers("If-Match", "*"));
+        verify(response, never()).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+    }
+
+    @Test
+    public void ifUnmodifiedSinceTest() throws Exception {
+
+        HttpServletResponse response = serve(headers("If-Unmodified-Since", LAST_MODIFIED_HTTP - 1000));
+        verify(response).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+
+        // the truncated Last-Modified is not later than itself
+        response = serve(headers("If-Unmodified-Since", LAST_MODIFIED_HTTP));
+        verify(response, never()).sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+    }
+
+    private static Map<String, Object> headers(String name, Object value) {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(name, value);
+        return headers;
+    }
+
+    /**
+     * Serve the file to a HEAD request with the given headers (strings, or dates in milliseconds).
+     */
+    private HttpServletResponse serve(Map<String, Object> headers) throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        given(request.getMethod()).willReturn("HEAD");
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            Object value = header.getValue();
+            if (value instanceof Long) {
+                given(request.getHeader(header.getKey())).willReturn("date");
+                given(request.getDateHeader(header.getKey())).willReturn((Long) value);
+            } else {
+                given(request.getHeader(header.getKey())).willReturn((String) value);
+            }
+        }
+        MultipartFileSender.fromFile(file).compress(false).with(request).with(response).serveResource();
+        return response;
+    }
+}
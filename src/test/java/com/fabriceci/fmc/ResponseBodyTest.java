@@ -0,0 +1,141 @@
+package com.fabriceci.fmc;
+
+import com.fabriceci.fmc.util.BufferPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ResponseBodyTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void asyncErrorTest() throws Exception {
+
+        File file = temporaryFolder.newFile("content.bin");
+        Files.write(file.toPath(), new byte[200000]);
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        final AtomicInteger closed = new AtomicInteger();
+        ResponseBody body = new ResponseBody(channel, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                closed.incrementAndGet();
+                channel.close();
+            }
+        }).addString("header").addRegion(0, 200000);
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        SlowOutputStream output = new SlowOutputStream();
+        given(request.isAsyncSupported()).willReturn(true);
+        given(request.startAsync(request, response)).willReturn(asyncContext);
+        given(response.getOutputStream()).willReturn(output);
+
+        body.send(request, response, true);
+        verify(asyncContext).addListener(body);
+
+        // a chunk written, then the client goes away
+        output.ready = 2;
+        body.onWritePossible();
+        assertEquals(6 + 65536, output.written.size());
+        body.onError(new IOException("Connection reset by peer"));
+        body.onError(new AsyncEvent(asyncContext));
+        verify(asyncContext, times(1)).complete();
+        // still owned by the body until the container completes the request
+        assertEquals(0, closed.get());
+        assertTrue(channel.isOpen());
+
+        // nothing is written anymore
+        output.ready = 10;
+        body.onWritePossible();
+        assertEquals(6 + 65536, output.written.size());
+
+        body.onComplete(new AsyncEvent(asyncContext));
+        assertEquals(1, closed.get());
+        assertFalse(channel.isOpen());
+        // the chunk buffer is back in the pool, once
+        assertSame(output.buffer, BufferPool.acquire(65536));
+        assertNotSame(output.buffer, BufferPool.acquire(65536));
+
+        body.onComplete(new AsyncEvent(asyncContext));
+        body.onWritePossible();
+        assertEquals(1, closed.get());
+        assertEquals(6 + 65536, output.written.size());
+    }
+
+    @Test
+    public void asyncTimeoutTest() throws Exception {
+
+        File file = temporaryFolder.newFile("content.bin");
+        Files.write(file.toPath(), new byte[1000]);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ResponseBody body = new ResponseBody(channel).addRegion(0, 1000);
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        given(request.isAsyncSupported()).willReturn(true);
+        given(request.startAsync(request, response)).willReturn(asyncContext);
+        given(response.getOutputStream()).willReturn(new SlowOutputStream());
+
+        body.send(request, response, true);
+        body.onTimeout(new AsyncEvent(asyncContext));
+        verify(asyncContext).complete();
+        assertTrue(channel.isOpen());
+        body.onComplete(new AsyncEvent(asyncContext));
+        assertFalse(channel.isOpen());
+    }
+
+    /**
+     * A non-blocking stream which is ready a given number of times.
+     */
+    private static class SlowOutputStream extends ServletOutputStream {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int ready = 0;
+        byte[] buffer;
+
+        @Override
+        public boolean isReady() {
+            return ready-- > 0;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            written.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (length == 65536) buffer = bytes;
+            written.write(bytes, offset, length);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.fabriceci.fmc.error.FMInitializationException;
 import com.fabriceci.fmc.error.FileManagerException;
 import com.fabriceci.fmc.model.FileData;
 import com.fabriceci.fmc.model.SuccessResponse;
+import com.fabriceci.fmc.util.FileStamp;
 import com.fabriceci.fmc.util.ImageUtils;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
@@ -16,23 +17,41 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
 import java.awt.*;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.*;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 public class LocalFileManagerTest {
 
@@ -515,6 +534,306 @@ public class LocalFileManagerTest {
 
     }
 
+    @Test
+    public void actionGetImageRangeTest() throws IOException, FMInitializationException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        File sampleImageTemp = new File(temporaryFolderPath + '/' + sampleImageFile.getName());
+        Files.copy(sampleImageFile.toPath(), sampleImageTemp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // partial content
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        File resultFile = new File(temporaryOuputFolder.getRoot().getAbsolutePath() + "/" + "part.jpg");
+        StubServletOutputStream servletOutputStream = new StubServletOutputStream(resultFile);
+
+        given(resp.getOutputStream()).willReturn(servletOutputStream);
+        given(req.getParameter(PARAM_MODE)).willReturn("getimage");
+        given(req.getParameter(PARAM_PATH)).willReturn("/" + sampleImageFile.getName());
+        given(req.getMethod()).willReturn("GET");
+        given(req.getHeader("Range")).willReturn("bytes=0-99");
+        localFileManager.handleRequest(req, resp);
+        servletOutputStream.flush();
+
+        verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        assertEquals(100, resultFile.length());
+
+        // not modified
+        req = mock(HttpServletRequest.class);
+        resp = mock(HttpServletResponse.class);
+        given(req.getParameter(PARAM_MODE)).willReturn("getimage");
+        given(req.getParameter(PARAM_PATH)).willReturn("/" + sampleImageFile.getName());
+        given(req.getMethod()).willReturn("GET");
+        given(req.getHeader("If-None-Match")).willReturn(FileStamp.of(sampleImageTemp.toPath()).getETag());
+        localFileManager.handleRequest(req, resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(resp, never()).getOutputStream();
+
+        // headers only
+        req = mock(HttpServletRequest.class);
+        resp = mock(HttpServletResponse.class);
+        given(req.getParameter(PARAM_MODE)).willReturn("getimage");
+        given(req.getParameter(PARAM_PATH)).willReturn("/" + sampleImageFile.getName());
+        given(req.getMethod()).willReturn("HEAD");
+        localFileManager.handleRequest(req, resp);
+
+        verify(resp).setContentLengthLong(sampleImageTemp.length());
+        verify(resp, never()).getOutputStream();
+    }
+
+    @Test
+    public void actionDownloadLargeFileTest() throws IOException, FMInitializationException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        // sparse 3 GiB file, only the last bytes are written
+        final long length = 3L * 1024 * 1024 * 1024;
+        File largeFile = new File(temporaryFolderPath + "/large.mkv");
+        try (RandomAccessFile raf = new RandomAccessFile(largeFile, "rw")) {
+            raf.setLength(length);
+            raf.seek(length - 4);
+            raf.write(new byte[]{'t', 'a', 'i', 'l'});
+        }
+
+        // headers only, the length does not fit in an int
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        given(req.getParameter(PARAM_MODE)).willReturn("download");
+        given(req.getParameter(PARAM_PATH)).willReturn("/large.mkv");
+        given(req.getMethod()).willReturn("HEAD");
+        localFileManager.handleRequest(req, resp);
+
+        verify(resp).setContentLengthLong(length);
+        verify(resp).setHeader("Content-Disposition", "attachment;filename=\"large.mkv\"");
+        verify(resp, never()).getOutputStream();
+
+        // resume at the end of the file
+        req = mock(HttpServletRequest.class);
+        resp = mock(HttpServletResponse.class);
+        File resultFile = new File(temporaryOuputFolder.getRoot().getAbsolutePath() + "/" + "tail.bin");
+        StubServletOutputStream servletOutputStream = new StubServletOutputStream(resultFile);
+        given(resp.getOutputStream()).willReturn(servletOutputStream);
+        given(req.getParameter(PARAM_MODE)).willReturn("download");
+        given(req.getParameter(PARAM_PATH)).willReturn("/large.mkv");
+        given(req.getMethod()).willReturn("GET");
+        given(req.getHeader("Range")).willReturn("bytes=" + (length - 10) + "-");
+        localFileManager.handleRequest(req, resp);
+        servletOutputStream.flush();
+
+        verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(resp).setHeader("Content-Range", "bytes " + (length - 10) + "-" + (length - 1) + "/" + length);
+        verify(resp).setContentLengthLong(10);
+        byte[] tail = Files.readAllBytes(resultFile.toPath());
+        assertEquals(10, tail.length);
+        assertEquals("tail", new String(tail, 6, 4, "US-ASCII"));
+    }
+
+    @Test
+    public void browseZipArchiveTest() throws IOException, FileManagerException {
+        Map<String, String> options = new HashMap<>();
+        options.put("zip.browse.enabled", "true");
+        final LocalFileManager localFileManager = initFileManager(options, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        File archive = new File(temporaryFolderPath + "/archive.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("notes.txt"));
+            out.write("some notes".getBytes("UTF-8"));
+            out.putNextEntry(new ZipEntry("docs/readme.txt"));
+            out.write("read me".getBytes("UTF-8"));
+        }
+
+        List<FileData> root = localFileManager.actionReadFolder("/archive.zip/", null);
+        assertEquals(2, root.size());
+        assertEquals("/archive.zip/notes.txt", root.get(0).getId());
+        assertEquals("/archive.zip/docs/", root.get(1).getId());
+        List<FileData> docs = localFileManager.actionReadFolder("/archive.zip/docs/", null);
+        assertEquals(1, docs.size());
+        assertEquals("readme.txt", docs.get(0).getAttributes().getName());
+
+        FileData info = localFileManager.actionGetInfo("/archive.zip/docs/readme.txt");
+        assertEquals(Long.valueOf(7), info.getAttributes().getSize());
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        File resultFile = new File(temporaryOuputFolder.getRoot().getAbsolutePath() + "/" + "notes.txt");
+        StubServletOutputStream servletOutputStream = new StubServletOutputStream(resultFile);
+        given(resp.getOutputStream()).willReturn(servletOutputStream);
+        given(req.getParameter(PARAM_MODE)).willReturn("readfile");
+        given(req.getParameter(PARAM_PATH)).willReturn("/archive.zip/notes.txt");
+        given(req.getMethod()).willReturn("GET");
+        localFileManager.handleRequest(req, resp);
+        servletOutputStream.flush();
+
+        verify(resp).setContentLengthLong(10);
+        assertEquals("some notes", new String(Files.readAllBytes(resultFile.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void multiDownloadTest() throws IOException, FMInitializationException {
+        Map<String, String> options = new HashMap<>();
+        options.put("allowFolderDownload", "true");
+        final LocalFileManager localFileManager = initFileManager(options, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        new File(temporaryFolderPath + "/docs/sub").mkdirs();
+        Files.write(Paths.get(temporaryFolderPath, "docs/a.txt"), "a".getBytes("UTF-8"));
+        Files.write(Paths.get(temporaryFolderPath, "docs/sub/b.txt"), "b".getBytes("UTF-8"));
+        Files.write(Paths.get(temporaryFolderPath, "docs/sub/c.txt"), "c".getBytes("UTF-8"));
+        Files.write(Paths.get(temporaryFolderPath, "docs/d.txt"), "d".getBytes("UTF-8"));
+
+        // a folder, a file of another folder and a file already in the selected folder
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        File resultFile = new File(temporaryOuputFolder.getRoot().getAbsolutePath() + "/" + "download.zip");
+        StubServletOutputStream servletOutputStream = new StubServletOutputStream(resultFile);
+        given(resp.getOutputStream()).willReturn(servletOutputStream);
+        given(req.getParameter(PARAM_MODE)).willReturn("download");
+        given(req.getParameterValues("paths")).willReturn(new String[]{"/docs/sub/", "/docs/a.txt", "/docs/sub/b.txt"});
+        given(req.getMethod()).willReturn("POST");
+        localFileManager.handleRequest(req, resp);
+
+        verify(resp).setContentType("application/zip");
+        verify(resp).setHeader("Content-Disposition", "attachment; filename=\"download.zip\"");
+        List<String> names = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(resultFile)) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+            }
+        }
+        assertEquals(Arrays.asList("a.txt", "sub/b.txt", "sub/c.txt"), names);
+
+        // nothing is sent if a file of the selection is missing
+        req = mock(HttpServletRequest.class);
+        resp = mock(HttpServletResponse.class);
+        given(req.getParameter(PARAM_MODE)).willReturn("download");
+        given(req.getParameterValues("paths")).willReturn(new String[]{"/docs/a.txt", "/docs/missing.txt"});
+        given(req.getParameter("format")).willReturn("tar");
+        given(req.getMethod()).willReturn("POST");
+        given(resp.getWriter()).willReturn(new PrintWriter(new StringWriter()));
+        localFileManager.handleRequest(req, resp);
+
+        verify(resp).setStatus(500);
+        verify(resp, never()).getOutputStream();
+    }
+
+    @Test
+    public void chunkedUploadTest() throws IOException, FileManagerException, ServletException {
+        final LocalFileManager localFileManager = initFileManager();
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+        final byte[] content = "first chunk, second chunk".getBytes("UTF-8");
+
+        assertEquals(Long.valueOf(0), localFileManager.actionUploadStatus("/big.txt", content.length, null).getAttributes().getSize());
+
+        // the first chunk, then the upload resumes where the status says
+        List<FileData> uploaded = localFileManager.actionUpload(chunkRequest(content, 0, 13), "/");
+        assertEquals(Long.valueOf(13), uploaded.get(0).getAttributes().getSize());
+        assertFalse(new File(temporaryFolderPath + "/big.txt").exists());
+        // kept in a hidden folder of the root, on the file system of the uploaded files
+        assertTrue(new File(temporaryFolderPath + "/.uploads").isDirectory());
+        assertTrue(localFileManager.actionReadFolder("/", null).isEmpty());
+        long resume = localFileManager.actionUploadStatus("/big.txt", content.length, null).getAttributes().getSize();
+        assertEquals(13, resume);
+
+        uploaded = localFileManager.actionUpload(chunkRequest(content, (int) resume, content.length), "/");
+        assertEquals("/big.txt", uploaded.get(0).getId());
+        assertArrayEquals(content, Files.readAllBytes(Paths.get(temporaryFolderPath, "big.txt")));
+        // complete: a client which lost the last response does not start over
+        assertEquals(Long.valueOf(content.length), localFileManager.actionUploadStatus("/big.txt", content.length, null).getAttributes().getSize());
+
+        // unless the file was modified since
+        Files.write(Paths.get(temporaryFolderPath, "big.txt"), "another content, same size".substring(0, content.length).getBytes("UTF-8"));
+        Files.setLastModifiedTime(Paths.get(temporaryFolderPath, "big.txt"), FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertEquals(Long.valueOf(0), localFileManager.actionUploadStatus("/big.txt", content.length, null).getAttributes().getSize());
+    }
+
+    private static HttpServletRequest chunkRequest(byte[] content, int start, int end) throws IOException, ServletException {
+        Part part = mock(Part.class);
+        given(part.getContentType()).willReturn("text/plain");
+        given(part.getSubmittedFileName()).willReturn("big.txt");
+        given(part.getSize()).willReturn((long) (end - start));
+        given(part.getInputStream()).willReturn(new ByteArrayInputStream(content, start, end - start));
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        given(req.getParts()).willReturn(Collections.singletonList(part));
+        given(req.getHeader("Content-Range")).willReturn("bytes " + start + "-" + (end - 1) + "/" + content.length);
+        return req;
+    }
+
+    @Test
+    public void streamUploadTest() throws IOException, FileManagerException, ServletException {
+        Map<String, String> options = new HashMap<>();
+        options.put("upload.fileSizeLimit", "20");
+        final LocalFileManager localFileManager = initFileManager(options, true);
+        final String temporaryFolderPath = temporaryFolder.getRoot().getAbsolutePath() + '/' + FILE_ROOT;
+
+        // no multipart configuration: the files are read from the body as they arrive
+        List<FileData> uploaded = localFileManager.actionUpload(multipartRequest("a.txt", "first", "b.txt", "second"), "/");
+        assertEquals(2, uploaded.size());
+        assertEquals("/b.txt", uploaded.get(1).getId());
+        assertEquals("first", new String(Files.readAllBytes(Paths.get(temporaryFolderPath, "a.txt")), "UTF-8"));
+        assertEquals("second", new String(Files.readAllBytes(Paths.get(temporaryFolderPath, "b.txt")), "UTF-8"));
+
+        try {
+            localFileManager.actionUpload(multipartRequest("c.txt", "more than twenty bytes"), "/");
+            fail();
+        } catch (FileManagerException e) {
+            assertEquals(ClientErrorMessage.UPLOAD_FILES_SMALLER_THAN, e.getMessage());
+        }
+        assertArrayEquals(new String[]{"a.txt", "b.txt"}, sorted(new File(temporaryFolderPath).list()));
+    }
+
+    private static String[] sorted(String[] names) {
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * @param files names and contents of the files of the request
+     */
+    private static HttpServletRequest multipartRequest(String... files) throws IOException, ServletException {
+        StringBuilder body = new StringBuilder();
+        body.append("--BOUNDARY\r\nContent-Disposition: form-data; name=\"mode\"\r\n\r\nupload\r\n");
+        for (int i = 0; i < files.length; i += 2) {
+            body.append("--BOUNDARY\r\nContent-Disposition: form-data; name=\"files\"; filename=\"").append(files[i])
+                    .append("\"\r\nContent-Type: text/plain\r\n\r\n").append(files[i + 1]).append("\r\n");
+        }
+        body.append("--BOUNDARY--\r\n");
+        final ByteArrayInputStream in = new ByteArrayInputStream(body.toString().getBytes("UTF-8"));
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        given(req.getParts()).willThrow(new IllegalStateException("No multipart configuration"));
+        given(req.getMethod()).willReturn("POST");
+        given(req.getContentType()).willReturn("multipart/form-data; boundary=BOUNDARY");
+        given(req.getInputStream()).willReturn(new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+        });
+        return req;
+    }
+
     /**
      * @param json A JSON API String response
      * @return The String without path/created/modified values
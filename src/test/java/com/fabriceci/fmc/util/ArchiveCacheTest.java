@@ -0,0 +1,125 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ArchiveCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ArchiveCache.configure(new Properties());
+        ArchiveCache.shutdown();
+        ZipStreamWriter.configure(new Properties());
+    }
+
+    @Test
+    public void fingerprintTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("zip.cache.enabled", "true");
+        properties.setProperty("zip.cache.dir", temporaryFolder.newFolder("cache").getPath());
+        properties.setProperty("zip.cache.maxFileSize", "100000");
+        ArchiveCache.configure(properties);
+        assertTrue(ArchiveCache.isEnabled());
+
+        File dir = temporaryFolder.newFolder("release");
+        File file = new File(dir, "notes.txt");
+        Files.write(file.toPath(), "version 1".getBytes(StandardCharsets.UTF_8));
+        assertTrue(new File(dir, "docs").mkdir());
+        Files.write(new File(dir, "docs/readme.txt").toPath(), "read me".getBytes(StandardCharsets.UTF_8));
+
+        Path archive = archive(dir);
+        Map<String, String> entries = ZipUtilsTest.readEntries(Files.readAllBytes(archive));
+        assertEquals("version 1", entries.get("release/notes.txt"));
+        assertEquals("read me", entries.get("release/docs/readme.txt"));
+        long built = Files.getLastModifiedTime(archive).toMillis();
+
+        // unchanged tree: same archive, not rebuilt
+        assertEquals(archive, archive(dir));
+        assertEquals(built, Files.getLastModifiedTime(archive).toMillis());
+
+        // a modified file gives a new archive
+        Files.write(file.toPath(), "version 2".getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        Path updated = archive(dir);
+        assertNotEquals(archive, updated);
+        assertEquals("version 2", ZipUtilsTest.readEntries(Files.readAllBytes(updated)).get("release/notes.txt"));
+
+        // too large to be cached
+        Files.write(new File(dir, "large.bin").toPath(), new byte[100001]);
+        assertNull(ArchiveCache.acquire(dir));
+    }
+
+    @Test
+    public void configurationTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("zip.cache.enabled", "true");
+        properties.setProperty("zip.cache.dir", temporaryFolder.newFolder("cache").getPath());
+        ArchiveCache.configure(properties);
+        File dir = temporaryFolder.newFolder("photos");
+        Files.write(new File(dir, "photo.jpg").toPath(), new byte[1000]);
+        Path archive = archive(dir);
+
+        // each setting the archive bytes depend on gives another archive
+        Properties zip = new Properties();
+        zip.setProperty("zip.store.mimeTypes", "video/");
+        ZipStreamWriter.configure(zip);
+        Path unstored = archive(dir);
+        assertNotEquals(archive, unstored);
+
+        zip.setProperty("zip.probe.minSaving", "50");
+        ZipStreamWriter.configure(zip);
+        Path probed = archive(dir);
+        assertNotEquals(unstored, probed);
+
+        zip.setProperty("zip.level", "1");
+        ZipStreamWriter.configure(zip);
+        assertNotEquals(probed, archive(dir));
+
+        ZipStreamWriter.configure(new Properties());
+        assertEquals(archive, archive(dir));
+    }
+
+    @Test
+    public void instanceDirectoryTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("zip.cache.enabled", "true");
+        ArchiveCache.configure(properties);
+        File dir = temporaryFolder.newFolder("release");
+        Files.write(new File(dir, "notes.txt").toPath(), "notes".getBytes(StandardCharsets.UTF_8));
+
+        Path cacheDir = archive(dir).getParent();
+        assertEquals(Paths.get(System.getProperty("java.io.tmpdir")).toAbsolutePath(), cacheDir.getParent().toAbsolutePath());
+        assertNotEquals("filemanager-zip", cacheDir.getFileName().toString());
+        assertTrue(cacheDir.getFileName().toString().startsWith("filemanager-zip"));
+
+        // configuring again keeps the directory, stopping deletes it
+        ArchiveCache.configure(properties);
+        assertEquals(cacheDir, archive(dir).getParent());
+        ArchiveCache.shutdown();
+        assertFalse(Files.exists(cacheDir));
+    }
+
+    private static Path archive(File dir) throws Exception {
+        try (DiskCache.Lease lease = ArchiveCache.acquire(dir)) {
+            return lease.getPath();
+        }
+    }
+}
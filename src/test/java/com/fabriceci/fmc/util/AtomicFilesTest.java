@@ -0,0 +1,119 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class AtomicFilesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writeTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("write.fsync", "full");
+        AtomicFiles.configure(properties);
+        try {
+            Path target = temporaryFolder.getRoot().toPath().resolve("file.txt");
+            AtomicFiles.write(target, bytes("old content, longer"));
+            boolean posix = Files.getFileStore(target).supportsFileAttributeView("posix");
+            if (posix) {
+                Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rw-r-----"));
+            }
+
+            // a reader of the old file keeps reading it whole
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+                AtomicFiles.write(target, bytes("new"));
+                ByteBuffer old = ByteBuffer.allocate(64);
+                channel.read(old, 0);
+                assertEquals("old content, longer", new String(old.array(), 0, old.position(), StandardCharsets.UTF_8));
+            }
+
+            assertEquals("new", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+            if (posix) {
+                assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(target)));
+            }
+            assertArrayEquals(new String[]{"file.txt"}, temporaryFolder.getRoot().list());
+        } finally {
+            AtomicFiles.configure(new Properties());
+        }
+    }
+
+    @Test
+    public void copyTest() throws Exception {
+
+        File source = temporaryFolder.newFile("source.txt");
+        Files.write(source.toPath(), bytes("source"));
+        File target = temporaryFolder.newFile("target.txt");
+        Files.write(target.toPath(), bytes("target"));
+
+        AtomicFiles.copy(source.toPath(), target.toPath());
+        assertEquals("source", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+
+        // a failed copy leaves the target as it was, and no temporary file
+        try {
+            AtomicFiles.copy(temporaryFolder.getRoot().toPath().resolve("missing.txt"), target.toPath());
+            fail();
+        } catch (NoSuchFileException expected) {
+        }
+        assertEquals("source", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+        assertEquals(2, temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void copyNewTest() throws Exception {
+
+        File source = temporaryFolder.newFile("source.txt");
+        Files.write(source.toPath(), bytes("source"));
+        Path created = temporaryFolder.getRoot().toPath().resolve("created.txt");
+
+        AtomicFiles.copyNew(source.toPath(), created);
+        assertEquals("source", new String(Files.readAllBytes(created), StandardCharsets.UTF_8));
+
+        // an existing target is kept, and no temporary file is left
+        File target = temporaryFolder.newFile("target.txt");
+        Files.write(target.toPath(), bytes("target"));
+        try {
+            AtomicFiles.copyNew(source.toPath(), target.toPath());
+            fail();
+        } catch (FileAlreadyExistsException expected) {
+        }
+        assertEquals("target", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+        assertEquals(3, temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void publishTest() throws Exception {
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("published.txt");
+        Path temporary = AtomicFiles.createTemporary(target);
+        assertEquals(target.getParent(), temporary.getParent());
+        assertTrue(temporary.getFileName().toString().startsWith(".published.txt."));
+        assertFalse(Files.exists(temporary));
+
+        Files.write(temporary, bytes("published"));
+        AtomicFiles.publish(temporary, target);
+        assertFalse(Files.exists(temporary));
+        assertEquals("published", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
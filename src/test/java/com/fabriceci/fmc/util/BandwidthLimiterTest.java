@@ -0,0 +1,132 @@
+package com.fabriceci.fmc.util;
+
+import com.fabriceci.fmc.FileManagerContextListener;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BandwidthLimiterTest {
+
+    @After
+    public void tearDown() {
+        BandwidthLimiter.configure(new Properties());
+    }
+
+    @Test
+    public void weightedShareTest() {
+
+        Properties properties = new Properties();
+        properties.setProperty("bandwidth.global", "1000000");
+        properties.setProperty("bandwidth.perClient", "600000");
+        properties.setProperty("bandwidth.weight.readfile", "3");
+        BandwidthLimiter.configure(properties);
+        assertTrue(BandwidthLimiter.isEnabled());
+        assertEquals(3, BandwidthLimiter.getWeight("readfile"));
+        assertEquals(1, BandwidthLimiter.getWeight("download"));
+
+        BandwidthLimiter.Transfer download = BandwidthLimiter.open("a", 1);
+        assertEquals(600000, download.getAllowedRate());
+
+        BandwidthLimiter.Transfer preview = BandwidthLimiter.open("b", 3);
+        assertEquals(250000, download.getAllowedRate());
+        assertEquals(600000, preview.getAllowedRate());
+
+        // a second transfer of the same client shares its limit
+        BandwidthLimiter.Transfer other = BandwidthLimiter.open("a", 1);
+        assertEquals(200000, download.getAllowedRate());
+        assertEquals(200000, other.getAllowedRate());
+
+        other.close();
+        preview.close();
+        assertEquals(600000, download.getAllowedRate());
+        download.close();
+    }
+
+    @Test
+    public void monitoringTest() throws Exception {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(BandwidthLimiter.MBEAN_NAME);
+        assertFalse(server.isRegistered(name));
+        final AtomicInteger registrations = new AtomicInteger();
+        NotificationListener listener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())
+                        && name.equals(((MBeanServerNotification) notification).getMBeanName())) {
+                    registrations.incrementAndGet();
+                }
+            }
+        };
+        server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, null, null);
+
+        Properties properties = new Properties();
+        properties.setProperty("bandwidth.perClient", "1000000");
+        BandwidthLimiter.configure(properties);
+        assertTrue(server.isRegistered(name));
+        assertEquals(1000000L, server.getAttribute(name, "ClientLimit"));
+        // registered once, not again with each configuration
+        properties.setProperty("bandwidth.global", "2000000");
+        BandwidthLimiter.configure(properties);
+        BandwidthLimiter.configure(properties);
+        assertEquals(2000000L, server.getAttribute(name, "GlobalLimit"));
+        server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener);
+        assertEquals(1, registrations.get());
+
+        BandwidthLimiter.Transfer transfer = BandwidthLimiter.open("10.0.0.1", 1);
+        try {
+            assertEquals(1, server.getAttribute(name, "ActiveTransfers"));
+            TabularData rates = (TabularData) server.getAttribute(name, "CurrentRates");
+            assertEquals(1, rates.size());
+            CompositeData row = (CompositeData) rates.values().iterator().next();
+            assertEquals("10.0.0.1", row.get("key"));
+            assertEquals(0L, row.get("value"));
+        } finally {
+            transfer.close();
+        }
+        assertEquals(0, server.getAttribute(name, "ActiveTransfers"));
+
+        // withdrawn with the limits
+        BandwidthLimiter.configure(new Properties());
+        assertFalse(server.isRegistered(name));
+
+        // and when the application stops
+        BandwidthLimiter.configure(properties);
+        assertTrue(server.isRegistered(name));
+        new FileManagerContextListener().contextDestroyed(null);
+        assertFalse(server.isRegistered(name));
+        BandwidthLimiter.configure(new Properties());
+    }
+
+    @Test
+    public void throttleTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("bandwidth.global", "200000");
+        BandwidthLimiter.configure(properties);
+
+        BandwidthLimiter.Transfer transfer = BandwidthLimiter.open("a", 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            transfer.acquire(10000);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        transfer.close();
+
+        // 100KB at 200KB/s, less the initial burst
+        assertTrue("elapsed " + elapsed, elapsed >= 350 && elapsed < 2000);
+    }
+}
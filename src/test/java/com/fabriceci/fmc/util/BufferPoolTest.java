@@ -0,0 +1,160 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    private static final int[] CLASS_SIZES = {4096, 16384, 65536, 262144, 1048576};
+    private static final int MAX_PER_CLASS = 4;
+
+    @After
+    public void reset() {
+        BufferPool.configure(new Properties());
+    }
+
+    @Test
+    public void heapRoundTripTest() {
+
+        configure(MAX_PER_CLASS);
+        for (int size : CLASS_SIZES) {
+            drain(size);
+            Set<byte[]> released = identitySet();
+            for (int i = 0; i < MAX_PER_CLASS; i++) {
+                byte[] buffer = BufferPool.acquire(size - 1);
+                assertEquals(size, buffer.length);
+                released.add(buffer);
+            }
+            for (byte[] buffer : released) {
+                BufferPool.release(buffer);
+            }
+            // the same buffers come back, nothing is allocated
+            for (int i = 0; i < MAX_PER_CLASS; i++) {
+                assertTrue("class " + size, released.remove(BufferPool.acquire(size)));
+            }
+        }
+
+        assertEquals(4096, BufferPool.acquire(1).length);
+        assertEquals(16384, BufferPool.acquire(4097).length);
+        assertEquals(262144, BufferPool.acquire().length);
+    }
+
+    @Test
+    public void directRoundTripTest() {
+
+        configure(MAX_PER_CLASS);
+        for (int size : CLASS_SIZES) {
+            drainDirect(size);
+            Set<ByteBuffer> released = identitySet();
+            for (int i = 0; i < MAX_PER_CLASS; i++) {
+                ByteBuffer buffer = BufferPool.acquireDirect(size);
+                assertTrue(buffer.isDirect());
+                assertEquals(size, buffer.capacity());
+                released.add(buffer);
+            }
+            for (ByteBuffer buffer : released) {
+                buffer.position(10);
+                BufferPool.release(buffer);
+            }
+            for (int i = 0; i < MAX_PER_CLASS; i++) {
+                ByteBuffer buffer = BufferPool.acquireDirect(size);
+                assertTrue("class " + size, released.remove(buffer));
+                // handed out cleared
+                assertEquals(0, buffer.position());
+                assertEquals(size, buffer.limit());
+            }
+        }
+    }
+
+    @Test
+    public void rejectTest() {
+
+        configure(MAX_PER_CLASS);
+        drain(4096);
+        drain(16384);
+        drainDirect(4096);
+
+        // sizes which are not a class, or larger than the largest class
+        byte[] odd = new byte[5000];
+        BufferPool.release(odd);
+        assertNotSame(odd, BufferPool.acquire(4096));
+        assertNotSame(odd, BufferPool.acquire(5000));
+        byte[] large = BufferPool.acquire(2 * 1048576);
+        assertEquals(2 * 1048576, large.length);
+        BufferPool.release(large);
+        assertNotSame(large, BufferPool.acquire(2 * 1048576));
+
+        // heap byte buffers and direct buffers of another capacity
+        ByteBuffer heap = ByteBuffer.allocate(4096);
+        BufferPool.release(heap);
+        ByteBuffer oddDirect = ByteBuffer.allocateDirect(4000);
+        BufferPool.release(oddDirect);
+        ByteBuffer acquired = BufferPool.acquireDirect(4000);
+        assertNotSame(heap, acquired);
+        assertNotSame(oddDirect, acquired);
+        assertTrue(acquired.isDirect());
+        assertEquals(4096, acquired.capacity());
+
+        BufferPool.release((byte[]) null);
+        BufferPool.release((ByteBuffer) null);
+    }
+
+    @Test
+    public void maxPerClassTest() {
+
+        // a class without thread slot: every buffer goes through the shared list
+        final int size = 262144;
+        configure(2);
+        drain(size);
+        List<byte[]> released = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            released.add(new byte[size]);
+        }
+        for (byte[] buffer : released) {
+            BufferPool.release(buffer);
+        }
+
+        // only the first two were kept
+        assertSame(released.get(0), BufferPool.acquire(size));
+        assertSame(released.get(1), BufferPool.acquire(size));
+        byte[] allocated = BufferPool.acquire(size);
+        for (byte[] buffer : released) {
+            assertNotSame(buffer, allocated);
+        }
+    }
+
+    private static void configure(int maxPerClass) {
+        Properties properties = new Properties();
+        properties.setProperty("buffer.pool.maxPerClass", String.valueOf(maxPerClass));
+        BufferPool.configure(properties);
+    }
+
+    /**
+     * Take every free buffer of a class out of the pool: the thread slot and up to the default cap of the list.
+     */
+    private static void drain(int size) {
+        for (int i = 0; i <= 16; i++) {
+            BufferPool.acquire(size);
+        }
+    }
+
+    private static void drainDirect(int size) {
+        for (int i = 0; i <= 16; i++) {
+            BufferPool.acquireDirect(size);
+        }
+    }
+
+    private static <T> Set<T> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    }
+}
@@ -0,0 +1,102 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteRangesTest {
+
+    @Test
+    public void parseSingleRangeTest() {
+
+        ByteRanges ranges = ByteRanges.parse("bytes=50-80", 100, 16);
+        assertEquals(1, ranges.size());
+        assertEquals(50, ranges.getStart(0));
+        assertEquals(80, ranges.getEnd(0));
+        assertEquals(31, ranges.getLength(0));
+        assertEquals("bytes 50-80/100", ranges.getContentRange(0));
+
+        // open and suffix ranges
+        ranges = ByteRanges.parse("bytes=40-", 100, 16);
+        assertEquals(40, ranges.getStart(0));
+        assertEquals(99, ranges.getEnd(0));
+
+        ranges = ByteRanges.parse("bytes=-20", 100, 16);
+        assertEquals(80, ranges.getStart(0));
+        assertEquals(99, ranges.getEnd(0));
+
+        ranges = ByteRanges.parse("bytes=-500", 100, 16);
+        assertEquals(0, ranges.getStart(0));
+        assertEquals(99, ranges.getEnd(0));
+
+        // end beyond the length and whitespaces
+        ranges = ByteRanges.parse(" bytes = 90 - 1000 ", 100, 16);
+        assertEquals(90, ranges.getStart(0));
+        assertEquals(99, ranges.getEnd(0));
+    }
+
+    @Test
+    public void parseInvalidRangeTest() {
+
+        assertNull(ByteRanges.parse("bytes=", 100, 16));
+        assertNull(ByteRanges.parse("bytes=-", 100, 16));
+        assertNull(ByteRanges.parse("bytes=a-b", 100, 16));
+        assertNull(ByteRanges.parse("bytes=80-50", 100, 16));
+        assertNull(ByteRanges.parse("items=0-10", 100, 16));
+        assertNull(ByteRanges.parse("bytes=0-10;", 100, 16));
+
+        // syntactically valid but not satisfiable
+        assertTrue(ByteRanges.parse("bytes=100-200", 100, 16).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", 100, 16).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=0-10", 0, 16).isEmpty());
+
+        // overflowing positions
+        assertTrue(ByteRanges.parse("bytes=99999999999999999999999-", 100, 16).isEmpty());
+    }
+
+    @Test
+    public void coalesceRangesTest() {
+
+        // overlapping, adjacent and unordered ranges are merged
+        ByteRanges ranges = ByteRanges.parse("bytes=500-999,0-199,100-299,300-399", 10000, 16);
+        assertEquals(2, ranges.size());
+        assertEquals(0, ranges.getStart(0));
+        assertEquals(399, ranges.getEnd(0));
+        assertEquals(500, ranges.getStart(1));
+        assertEquals(999, ranges.getEnd(1));
+
+        // a small gap is cheaper to send than another part
+        ranges = ByteRanges.parse("bytes=0-99,120-199", 10000, 16);
+        assertEquals(1, ranges.size());
+        assertEquals(199, ranges.getEnd(0));
+
+        // unsatisfiable parts are dropped
+        ranges = ByteRanges.parse("bytes=0-9,,20000-30000,5000-5009", 10000, 16);
+        assertEquals(2, ranges.size());
+    }
+
+    @Test
+    public void limitRangesTest() {
+
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i < 20; i++) {
+            header.append(i * 1000).append('-').append(i * 1000 + 9).append(',');
+        }
+        assertSame(ByteRanges.TOO_MANY, ByteRanges.parse(header.toString(), 100000, 16));
+        assertEquals(20, ByteRanges.parse(header.toString(), 100000, 20).size());
+
+        // many overlapping ranges are accepted once merged
+        header = new StringBuilder("bytes=");
+        for (int i = 0; i < 50; i++) {
+            header.append("0-").append(i).append(',');
+        }
+        assertEquals(1, ByteRanges.parse(header.toString(), 100000, 16).size());
+
+        // but not without limit
+        header = new StringBuilder("bytes=");
+        for (int i = 0; i < 101; i++) {
+            header.append("0-0,");
+        }
+        assertSame(ByteRanges.TOO_MANY, ByteRanges.parse(header.toString(), 100000, 16));
+    }
+}
@@ -0,0 +1,29 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class CrcUtilsTest {
+
+    @Test
+    public void combineTest() {
+
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        CRC32 whole = new CRC32();
+        whole.update(data);
+
+        for (int split : new int[]{0, 1, 4096, 65537, data.length}) {
+            CRC32 first = new CRC32();
+            first.update(data, 0, split);
+            CRC32 second = new CRC32();
+            second.update(data, split, data.length - split);
+            assertEquals(whole.getValue(), CrcUtils.combine(first.getValue(), second.getValue(), data.length - split));
+        }
+    }
+}
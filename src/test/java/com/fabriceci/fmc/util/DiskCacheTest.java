@@ -0,0 +1,141 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DiskCacheTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("disk-cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void buildOnceTest() throws Exception {
+
+        final DiskCache cache = new DiskCache(dir, 1024);
+        final AtomicInteger builds = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final DiskCache.Producer producer = new DiskCache.Producer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                builds.incrementAndGet();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                out.write(new byte[100]);
+            }
+        };
+
+        final Path[] results = new Path[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = cache.get("key", producer);
+                    } catch (IOException ignore) {}
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(100);
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, builds.get());
+        for (Path result : results) {
+            assertEquals(results[0], result);
+        }
+        assertEquals(100, Files.size(results[0]));
+    }
+
+    @Test
+    public void keepForeignFilesTest() throws Exception {
+
+        // a directory which holds other files than the entries of the cache
+        Path notes = Files.write(dir.resolve("notes.txt"), new byte[10]);
+        Path entry = Files.write(dir.resolve("0123456789abcdef0123456789abcdef01234567"), new byte[10]);
+        Path temporary = Files.write(dir.resolve("0123456789abcdef0123456789abcdef012345674242.tmp"), new byte[10]);
+
+        new DiskCache(dir, 1024);
+        assertTrue(Files.exists(notes));
+        assertFalse(Files.exists(entry));
+        assertFalse(Files.exists(temporary));
+    }
+
+    @Test
+    public void leaseTest() throws Exception {
+
+        DiskCache cache = new DiskCache(dir, 150);
+        DiskCache.Producer producer = new DiskCache.Producer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(new byte[100]);
+            }
+        };
+
+        DiskCache.Lease lease = cache.acquire("first", producer);
+        Path first = lease.getPath();
+        Path second = cache.get("second", producer);
+        // over budget, but the leased entry is kept until it is released
+        assertTrue(Files.exists(first));
+        assertTrue(Files.exists(second));
+
+        lease.close();
+        lease.close();
+        assertFalse(Files.exists(first));
+        assertTrue(Files.exists(second));
+    }
+
+    @Test
+    public void evictTest() throws Exception {
+
+        DiskCache cache = new DiskCache(dir, 250);
+        DiskCache.Producer producer = new DiskCache.Producer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(new byte[100]);
+            }
+        };
+
+        Path first = cache.get("first", producer);
+        Path second = cache.get("second", producer);
+        // "first" is the most recently used
+        assertEquals(first, cache.get("first", producer));
+        Path third = cache.get("third", producer);
+
+        assertTrue(Files.exists(first));
+        assertFalse(Files.exists(second));
+        assertTrue(Files.exists(third));
+    }
+}
@@ -0,0 +1,72 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class FileChannelCacheTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("channel-cache", ".txt");
+        Files.write(file, "content".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileChannelCache.invalidate(file);
+        FileChannelCache.configure(new Properties());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void reuseOpenChannelTest() throws Exception {
+
+        FileChannelCache.Handle first = FileChannelCache.open(file);
+        FileChannelCache.Handle second = FileChannelCache.open(file);
+        assertSame(first.getChannel(), second.getChannel());
+        assertEquals(7, second.getStamp().getSize());
+
+        first.close();
+        second.close();
+        // still cached after the handles are closed
+        assertTrue(second.getChannel().isOpen());
+
+        // an invalidated channel is closed with its last handle
+        FileChannelCache.Handle third = FileChannelCache.open(file);
+        FileChannelCache.invalidate(file);
+        assertTrue(third.getChannel().isOpen());
+        third.close();
+        assertFalse(third.getChannel().isOpen());
+    }
+
+    @Test
+    public void revalidateModifiedFileTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("channelCache.revalidateMillis", "0");
+        FileChannelCache.configure(properties);
+
+        FileChannelCache.Handle first = FileChannelCache.open(file);
+        first.close();
+
+        Files.write(file, "new content".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+        FileChannelCache.Handle second = FileChannelCache.open(file);
+        assertNotSame(first.getChannel(), second.getChannel());
+        assertFalse(first.getChannel().isOpen());
+        assertEquals(11, second.getStamp().getSize());
+        second.close();
+    }
+}
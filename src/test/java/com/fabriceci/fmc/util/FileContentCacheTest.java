@@ -0,0 +1,97 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class FileContentCacheTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("content-cache", ".txt");
+        Files.write(file, "content".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileContentCache.invalidate(file);
+        FileContentCache.configure(new Properties());
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void cacheSmallFileTest() throws Exception {
+
+        FileContentCache.Content content = FileContentCache.get(file);
+        assertSame(content, FileContentCache.get(file));
+        assertEquals(7, content.getSize());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        content.writeTo(out, 2, 4);
+        assertEquals("nten", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        // too large files are not cached
+        Properties properties = new Properties();
+        properties.setProperty("contentCache.maxFileSize", "4");
+        FileContentCache.configure(properties);
+        FileContentCache.invalidate(file);
+        assertNull(FileContentCache.get(file));
+    }
+
+    @Test
+    public void tooLargeFileTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("contentCache.maxFileSize", "4");
+        properties.setProperty("contentCache.revalidateMillis", "60000");
+        FileContentCache.configure(properties);
+        assertNull(FileContentCache.get(file));
+
+        // remembered: not stated again within the delay, even though the file is gone
+        Files.delete(file);
+        assertNull(FileContentCache.get(file));
+        // nor forgotten when configured again
+        FileContentCache.configure(properties);
+        assertNull(FileContentCache.get(file));
+
+        // until the file is written
+        FileContentCache.invalidate(file);
+        try {
+            FileContentCache.get(file);
+            fail();
+        } catch (NoSuchFileException expected) {
+        }
+        Files.write(file, "abc".getBytes(StandardCharsets.UTF_8));
+        assertEquals(3, FileContentCache.get(file).getSize());
+    }
+
+    @Test
+    public void revalidateModifiedFileTest() throws Exception {
+
+        Properties properties = new Properties();
+        properties.setProperty("contentCache.revalidateMillis", "0");
+        FileContentCache.configure(properties);
+
+        FileContentCache.Content first = FileContentCache.get(file);
+        assertSame(first, FileContentCache.get(file));
+
+        Files.write(file, "new content".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+        FileContentCache.Content second = FileContentCache.get(file);
+        assertNotSame(first, second);
+        assertEquals(11, second.getSize());
+    }
+}
@@ -0,0 +1,147 @@
+package com.fabriceci.fmc.util;
+
+import com.fabriceci.SparseFileOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TarWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writeArchiveTest() throws Exception {
+
+        byte[] content = new byte[1500];
+        new Random(3).nextBytes(content);
+        File file = temporaryFolder.newFile("random.bin");
+        Files.write(file.toPath(), content);
+        File empty = temporaryFolder.newFile("empty.txt");
+
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            longName.append("folder").append(i).append('/');
+        }
+        longName.append("random.bin");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(out);
+        writer.addFile("dir/random.bin", file);
+        writer.addFile("empty.txt", empty);
+        writer.addFile(longName.toString(), file);
+        writer.finish();
+        byte[] tar = out.toByteArray();
+
+        // header + 3 blocks, header, header + 3 blocks, end of archive
+        assertEquals(512 * (4 + 1 + 4 + 2), tar.length);
+        assertEquals(tar.length, writer.getStats().getArchiveBytes());
+        assertEquals(3, writer.getStats().getEntries());
+
+        assertHeader(tar, 0, "dir/random.bin", 1500);
+        assertArrayEquals(content, Arrays.copyOfRange(tar, 512, 512 + 1500));
+        assertHeader(tar, 2048, "empty.txt", 0);
+        assertHeader(tar, 2560, longName.toString(), 1500);
+        assertArrayEquals(content, Arrays.copyOfRange(tar, 3072, 3072 + 1500));
+        assertArrayEquals(new byte[1024], Arrays.copyOfRange(tar, tar.length - 1024, tar.length));
+    }
+
+    @Test
+    public void paxHeadersTest() throws Exception {
+
+        File file = temporaryFolder.newFile("a.txt");
+        Files.write(file.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        char[] chars = new char[120];
+        Arrays.fill(chars, 'a');
+        String longName = new String(chars);
+        String unicodeName = "dossier/\u00e9t\u00e9.txt";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(out);
+        writer.addFile(longName, file);
+        writer.addFile(unicodeName, file);
+        writer.finish();
+        byte[] tar = out.toByteArray();
+
+        // pax header + records, truncated header + content, twice
+        assertEquals(512 * (4 + 4 + 2), tar.length);
+        assertEquals('x', tar[156]);
+        String records = string(tar, 512, 512);
+        assertEquals("130 path=" + longName + "\n", records);
+        assertEquals(records.length(), Long.parseLong(string(tar, 124, 12), 8));
+        assertEquals(longName.substring(0, 100), string(tar, 1024, 100));
+        assertEquals("content", string(tar, 1536, 512));
+
+        assertEquals('x', tar[2048 + 156]);
+        assertEquals("26 path=" + unicodeName + "\n", string(tar, 2560, 512));
+        assertHeader(tar, 3072, unicodeName, 7);
+    }
+
+    @Test
+    public void largeFileTest() throws Exception {
+
+        // a sparse file over the 8GB of the ustar size field
+        final long length = 8L * 1024 * 1024 * 1024 + 100;
+        File large = temporaryFolder.newFile("large.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(large, "rw")) {
+            raf.setLength(length);
+            raf.seek(length - 4);
+            raf.write(new byte[]{'t', 'a', 'i', 'l'});
+        }
+
+        File archive = temporaryFolder.newFile("large.tar");
+        try (OutputStream out = new SparseFileOutputStream(archive)) {
+            TarWriter writer = new TarWriter(out);
+            writer.addFile("large.bin", large);
+            writer.finish();
+        }
+
+        long padded = (length + 511) / 512 * 512;
+        assertEquals(512 * 3 + padded + 1024, archive.length());
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+            byte[] headers = new byte[1536];
+            raf.readFully(headers);
+            assertEquals('x', headers[156]);
+            assertEquals("19 size=" + length + "\n", string(headers, 512, 512));
+            assertEquals("large.bin", string(headers, 1024, 100));
+            byte[] tail = new byte[4];
+            raf.seek(1536 + length - 4);
+            raf.readFully(tail);
+            assertEquals("tail", new String(tail, StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void assertHeader(byte[] tar, int offset, String name, long size) {
+        String prefix = string(tar, offset + 345, 155);
+        assertEquals(name, prefix.isEmpty() ? string(tar, offset, 100) : prefix + "/" + string(tar, offset, 100));
+        assertEquals(size, Long.parseLong(string(tar, offset + 124, 12), 8));
+        assertEquals('0', tar[offset + 156]);
+        assertEquals("ustar", string(tar, offset + 257, 6));
+        assertEquals("00", new String(tar, offset + 263, 2, StandardCharsets.US_ASCII));
+
+        long checksum = 0;
+        for (int i = 0; i < 512; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : tar[offset + i] & 0xff;
+        }
+        assertEquals(checksum, Long.parseLong(string(tar, offset + 148, 8).trim(), 8));
+    }
+
+    private static String string(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}
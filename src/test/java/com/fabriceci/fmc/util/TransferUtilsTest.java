@@ -0,0 +1,82 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferUtilsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void nonBlockingTargetTest() throws Exception {
+
+        // much more than a pipe buffer: the target is full most of the time
+        byte[] content = new byte[4 * 1024 * 1024];
+        new Random(5).nextBytes(content);
+        File file = temporaryFolder.newFile("content.bin");
+        Files.write(file.toPath(), content);
+
+        final Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> received = reader.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    ByteBuffer buffer = ByteBuffer.allocate(65536);
+                    while (pipe.source().read(buffer) >= 0) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                        // a slow client
+                        Thread.sleep(2);
+                    }
+                    return out.toByteArray();
+                }
+            });
+
+            long start = System.nanoTime();
+            long cpuStart = getCpuTime();
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                assertEquals(content.length, TransferUtils.transfer(source, 0, content.length, pipe.sink()));
+            }
+            long cpu = getCpuTime() - cpuStart;
+            long wall = System.nanoTime() - start;
+            pipe.sink().close();
+
+            assertArrayEquals(content, received.get(30, TimeUnit.SECONDS));
+            if (cpu >= 0) {
+                // waiting for the reader, not spinning
+                assertTrue("cpu " + cpu + " wall " + wall, cpu < wall / 4);
+            }
+        } finally {
+            reader.shutdownNow();
+            pipe.source().close();
+        }
+    }
+
+    private static long getCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+}
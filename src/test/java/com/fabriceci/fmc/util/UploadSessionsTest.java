@@ -0,0 +1,178 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UploadSessionsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void configure() throws IOException {
+        dir = temporaryFolder.newFolder("uploads");
+        Properties properties = new Properties();
+        properties.setProperty("upload.chunk.dir", dir.getAbsolutePath());
+        UploadSessions.configure(properties);
+    }
+
+    @After
+    public void reset() {
+        UploadSessions.configure(new Properties());
+    }
+
+    @Test
+    public void chunksInAnyOrderTest() throws Exception {
+
+        byte[] content = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+        UploadSessions.Session session = UploadSessions.open("upload-1", content.length, null);
+        // the size is reserved at once
+        assertEquals(content.length, new File(dir, "upload-1.part").length());
+
+        session.write(10, 10, new ByteArrayInputStream(content, 10, 10));
+        assertEquals(10, session.getReceived());
+        assertEquals(0, session.getContiguous());
+
+        // a truncated chunk is not counted
+        try {
+            session.write(0, 5, new ByteArrayInputStream(content, 0, 3));
+            fail();
+        } catch (EOFException expected) {
+        }
+        assertEquals(0, session.getContiguous());
+
+        session.write(0, 5, new ByteArrayInputStream(content, 0, 5));
+        assertEquals(5, session.getContiguous());
+        assertFalse(session.isComplete());
+        try {
+            session.complete(new File(temporaryFolder.getRoot(), "early.txt").toPath());
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // the same session, resumed by a later request
+        assertSame(session, UploadSessions.find("upload-1", null));
+        try {
+            UploadSessions.open("upload-1", 100, null);
+            fail();
+        } catch (IOException expected) {
+        }
+        UploadSessions.open("upload-1", content.length, null).write(5, 5, new ByteArrayInputStream(content, 5, 5));
+        assertTrue(session.isComplete());
+
+        Path target = new File(temporaryFolder.getRoot(), "uploaded.txt").toPath();
+        Files.write(target, "old".getBytes(StandardCharsets.US_ASCII));
+        session.complete(target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        // only the stamp of the completed file is left
+        assertArrayEquals(new String[]{"upload-1.completed"}, dir.list());
+        assertNull(UploadSessions.find("upload-1", null));
+        assertTrue(UploadSessions.isCompleted("upload-1", target, null));
+        assertFalse(UploadSessions.isCompleted("upload-2", target, null));
+        Files.write(target, "0123456789ABCDEFGHIJ".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertFalse(UploadSessions.isCompleted("upload-1", target, null));
+
+        // and forgotten when the upload starts over
+        UploadSessions.open("upload-1", content.length, null).cancel();
+        assertArrayEquals(new String[0], dir.list());
+    }
+
+    @Test
+    public void concurrentFinalChunksTest() throws Exception {
+
+        final byte[] content = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+        final Path target = new File(temporaryFolder.getRoot(), "uploaded.txt").toPath();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int n = 0; n < 20; n++) {
+                final int i = n;
+                final UploadSessions.Session session = UploadSessions.open("upload-" + i, content.length, null);
+                final CyclicBarrier barrier = new CyclicBarrier(2);
+                List<Future<Void>> chunks = new ArrayList<>();
+                for (final int start : new int[]{0, 10}) {
+                    chunks.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            barrier.await();
+                            // as the upload of a chunk does
+                            session.write(start, 10, new ByteArrayInputStream(content, start, 10));
+                            if (session.isComplete()) {
+                                session.complete(target);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> chunk : chunks) {
+                    chunk.get(10, TimeUnit.SECONDS);
+                }
+                assertArrayEquals(content, Files.readAllBytes(target));
+                assertArrayEquals(new String[]{"upload-" + i + ".completed"}, dir.list(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return name.startsWith("upload-" + i + ".");
+                    }
+                }));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // completed again once published, but not to another file nor once cancelled
+        UploadSessions.Session session = UploadSessions.open("upload-again", content.length, null);
+        session.write(0, content.length, new ByteArrayInputStream(content));
+        session.complete(target);
+        session.complete(target);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        try {
+            session.complete(new File(temporaryFolder.getRoot(), "other.txt").toPath());
+            fail();
+        } catch (IOException expected) {
+        }
+        session = UploadSessions.open("upload-cancelled", content.length, null);
+        session.write(0, content.length, new ByteArrayInputStream(content));
+        session.cancel();
+        try {
+            session.complete(target);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void idTest() {
+        assertTrue(UploadSessions.isValidId("a-b_C9"));
+        assertFalse(UploadSessions.isValidId("../etc"));
+        assertFalse(UploadSessions.isValidId(""));
+        assertEquals(UploadSessions.getId("/a/b.txt", 10), UploadSessions.getId("/a/b.txt", 10));
+        assertNotEquals(UploadSessions.getId("/a/b.txt", 10), UploadSessions.getId("/a/b.txt", 11));
+        assertTrue(UploadSessions.isValidId(UploadSessions.getId("/a/b.txt", 10)));
+    }
+}
@@ -0,0 +1,242 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipExtractorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void extractInArchiveOrderTest() throws Exception {
+
+        File archive = temporaryFolder.newFile("archive.zip");
+        List<String> names = new ArrayList<>();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("empty/"));
+            // files of nested folders without their own entries
+            for (int i = 0; i < 50; i++) {
+                String name = "dir" + (i % 5) + "/sub/file" + i + ".txt";
+                out.putNextEntry(new ZipEntry(name));
+                out.write(content(i));
+                names.add(name);
+            }
+            out.putNextEntry(new ZipEntry("skipped.txt"));
+            out.write("skipped".getBytes(StandardCharsets.UTF_8));
+        }
+
+        File target = temporaryFolder.newFolder("target");
+        // an existing file is replaced
+        assertTrue(new File(target, "dir0/sub").mkdirs());
+        Files.write(new File(target, "dir0/sub/file0.txt").toPath(), "old content, longer".getBytes(StandardCharsets.UTF_8));
+
+        List<ZipEntry> extracted = new ZipExtractor(archive, target).extract(new ZipExtractor.Filter() {
+            @Override
+            public boolean accept(ZipEntry entry, File file) {
+                return !file.getName().equals("skipped.txt");
+            }
+        });
+
+        assertEquals(51, extracted.size());
+        assertEquals("empty/", extracted.get(0).getName());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(names.get(i), extracted.get(i + 1).getName());
+            assertArrayEquals(content(i), Files.readAllBytes(new File(target, names.get(i)).toPath()));
+        }
+        assertTrue(new File(target, "empty").isDirectory());
+        assertFalse(new File(target, "skipped.txt").exists());
+    }
+
+    @Test
+    public void selectEntriesTest() throws Exception {
+
+        File archive = temporaryFolder.newFile("backup.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (String name : new String[]{"a.txt", "b.pdf", "docs/c.txt", "docs/d.pdf", "docs/sub/e.pdf", "other/f.txt"}) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // by name, looked up directly
+        File target = temporaryFolder.newFolder("names");
+        List<ZipEntry> extracted = new ZipExtractor(archive, target).select(Arrays.asList("docs/c.txt", "a.txt")).extract(ACCEPT_ALL);
+        assertEquals(2, extracted.size());
+        assertEquals("docs/c.txt", new String(Files.readAllBytes(new File(target, "docs/c.txt").toPath()), StandardCharsets.UTF_8));
+        assertArrayEquals(new String[]{"a.txt", "docs"}, sorted(target.list()));
+
+        // folders and glob patterns, in the order of the archive
+        target = temporaryFolder.newFolder("patterns");
+        extracted = new ZipExtractor(archive, target).select(Arrays.asList("docs/**.pdf", "*.txt", "other/")).extract(ACCEPT_ALL);
+        List<String> names = new ArrayList<>();
+        for (ZipEntry entry : extracted) {
+            names.add(entry.getName());
+        }
+        assertEquals(Arrays.asList("a.txt", "docs/d.pdf", "docs/sub/e.pdf", "other/f.txt"), names);
+        assertFalse(new File(target, "b.pdf").exists());
+
+        try {
+            new ZipExtractor(archive, target).select(Arrays.asList("missing.txt")).extract(ACCEPT_ALL);
+            fail();
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    private static String[] sorted(String[] names) {
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void limitsTest() throws Exception {
+
+        // 8MB of zeros deflate to a few KB
+        File archive = temporaryFolder.newFile("bomb.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("small.txt"));
+            out.write(content(1));
+            out.putNextEntry(new ZipEntry("deep/zeros.bin"));
+            out.write(new byte[8388608]);
+        }
+        File target = temporaryFolder.newFolder("bomb");
+
+        try {
+            new ZipExtractor(archive, target).maxRatio(100).extract(ACCEPT_ALL);
+            fail("ratio");
+        } catch (ZipExtractor.LimitException expected) {
+        }
+        // everything extracted was deleted
+        assertArrayEquals(new String[0], target.list());
+
+        try {
+            new ZipExtractor(archive, target).maxRatio(0).maxBytes(1048576).extract(ACCEPT_ALL);
+            fail("bytes");
+        } catch (ZipExtractor.LimitException expected) {
+        }
+        assertArrayEquals(new String[0], target.list());
+
+        try {
+            new ZipExtractor(archive, target).maxEntries(1).extract(ACCEPT_ALL);
+            fail("entries");
+        } catch (ZipExtractor.LimitException expected) {
+        }
+
+        // entries read in place are checked on their declared sizes
+        ZipExtractor.checkRatio("small.txt", 1048576, 100);
+        try {
+            ZipExtractor.checkRatio("deep/zeros.bin", 8388608, 8388608 / 101);
+            fail("declared ratio");
+        } catch (ZipExtractor.LimitException expected) {
+        }
+
+        assertEquals(2, new ZipExtractor(archive, target).maxRatio(0).maxBytes(0).extract(ACCEPT_ALL).size());
+        assertEquals(8388608, new File(target, "deep/zeros.bin").length());
+    }
+
+    @Test
+    public void existingFilesTest() throws Exception {
+
+        File archive = temporaryFolder.newFile("update.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("kept.txt"));
+            out.write(content(0));
+            out.putNextEntry(new ZipEntry("new.txt"));
+            out.write(content(1));
+            out.putNextEntry(new ZipEntry("zeros.bin"));
+            out.write(new byte[8388608]);
+        }
+        File target = temporaryFolder.newFolder("update");
+        File kept = new File(target, "kept.txt");
+        Files.write(kept.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+
+        // the files which existed are left as they were, and no temporary file
+        try {
+            new ZipExtractor(archive, target).maxRatio(100).extract(ACCEPT_ALL);
+            fail();
+        } catch (ZipExtractor.LimitException expected) {
+        }
+        assertArrayEquals(new String[]{"kept.txt"}, target.list());
+        assertEquals("old", new String(Files.readAllBytes(kept.toPath()), StandardCharsets.UTF_8));
+
+        // a failure while the entries are published puts back the files already replaced: the file entry "dir" is
+        // published after "dir/file.txt", over the directory created for it
+        File conflict = temporaryFolder.newFile("conflict.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(conflict))) {
+            out.putNextEntry(new ZipEntry("kept.txt"));
+            out.write(content(0));
+            out.putNextEntry(new ZipEntry("dir/file.txt"));
+            out.write(content(1));
+            out.putNextEntry(new ZipEntry("dir"));
+            out.write(content(2));
+        }
+        try {
+            new ZipExtractor(conflict, target).extract(ACCEPT_ALL);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(new String[]{"kept.txt"}, target.list());
+        assertEquals("old", new String(Files.readAllBytes(kept.toPath()), StandardCharsets.UTF_8));
+
+        // a directory of the name of a file entry is kept, and nothing is written
+        assertTrue(kept.delete());
+        assertTrue(kept.mkdir());
+        try {
+            new ZipExtractor(archive, target).maxRatio(0).extract(ACCEPT_ALL);
+            fail();
+        } catch (FileAlreadyExistsException expected) {
+        }
+        assertTrue(kept.isDirectory());
+        assertArrayEquals(new String[]{"kept.txt"}, target.list());
+    }
+
+    @Test
+    public void entryOutsideOfTargetTest() throws Exception {
+
+        File archive = temporaryFolder.newFile("slip.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("ok.txt"));
+            out.write(content(0));
+            out.putNextEntry(new ZipEntry("dir/../../escaped.txt"));
+            out.write(content(1));
+        }
+        File target = temporaryFolder.newFolder("slip");
+
+        try {
+            new ZipExtractor(archive, target).extract(ACCEPT_ALL);
+            fail();
+        } catch (ZipExtractor.UnsafeEntryException expected) {
+        }
+        assertFalse(new File(target, "ok.txt").exists());
+        assertFalse(new File(temporaryFolder.getRoot(), "escaped.txt").exists());
+    }
+
+    private static final ZipExtractor.Filter ACCEPT_ALL = new ZipExtractor.Filter() {
+        @Override
+        public boolean accept(ZipEntry entry, File target) {
+            return true;
+        }
+    };
+
+    private static byte[] content(int i) {
+        byte[] content = new byte[1000 + i * 997];
+        Arrays.fill(content, (byte) ('a' + i % 26));
+        return content;
+    }
+}
@@ -0,0 +1,157 @@
+package com.fabriceci.fmc.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void browseArchiveTest() throws Exception {
+
+        byte[] random = new byte[200000];
+        new Random(5).nextBytes(random);
+        byte[] text = new byte[300000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+
+        File archive = temporaryFolder.newFile("archive.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.setComment("an archive comment");
+            out.putNextEntry(new ZipEntry("readme.txt"));
+            out.write("read me".getBytes(StandardCharsets.UTF_8));
+            // a folder known only from its files
+            out.putNextEntry(new ZipEntry("docs/guide/text.txt"));
+            out.write(text);
+            ZipEntry stored = new ZipEntry("docs/random.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(random.length);
+            CRC32 crc = new CRC32();
+            crc.update(random);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(random);
+            out.putNextEntry(new ZipEntry("docs/"));
+            out.putNextEntry(new ZipEntry("../escaped.txt"));
+        }
+
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ZipIndex index = ZipIndex.read(channel, archive.length(), archive.lastModified());
+
+            assertEquals(5, index.size());
+            List<ZipIndex.Entry> root = index.list("");
+            assertEquals(2, root.size());
+            assertEquals("readme.txt", root.get(0).getName());
+            assertEquals("docs/", root.get(1).getName());
+            List<ZipIndex.Entry> docs = index.list("docs/");
+            assertEquals("guide", docs.get(0).getFileName());
+            assertTrue(docs.get(0).isDirectory());
+            assertEquals("random.bin", docs.get(1).getFileName());
+            assertNull(index.list("missing/"));
+            assertNull(index.getEntry("../escaped.txt"));
+
+            ZipIndex.Entry entry = index.getEntry("docs/guide/text.txt");
+            assertEquals(text.length, entry.getSize());
+            assertArrayEquals(text, read(index.openStream(channel, entry)));
+            assertArrayEquals(random, read(index.openStream(channel, index.getEntry("docs/random.bin"))));
+            assertEquals("read me", new String(read(index.openStream(channel, index.getEntry("readme.txt"))), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void checkedEntryTest() throws Exception {
+
+        byte[] text = new byte[300000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        File archive = temporaryFolder.newFile("archive.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            out.putNextEntry(new ZipEntry("text.txt"));
+            out.write(text);
+        }
+        byte[] content = Files.readAllBytes(archive.toPath());
+        // the CRC and size of the entry in the central directory
+        int central = indexOf(content, new byte[]{0x50, 0x4b, 0x01, 0x02});
+        ByteBuffer header = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int crc = header.getInt(central + 16);
+
+        // a CRC which does not match: the last bytes are not returned
+        header.putInt(central + 16, crc + 1);
+        assertInvalid(archive, content, text.length - 1, "Invalid CRC");
+
+        // declared smaller than it inflates: never more than declared
+        header.putInt(central + 16, crc);
+        header.putInt(central + 24, text.length - 1000);
+        assertInvalid(archive, content, text.length - 1000, "larger than declared");
+
+        header.putInt(central + 24, text.length + 1000);
+        assertInvalid(archive, content, text.length, "shorter than declared");
+    }
+
+    private static void assertInvalid(File archive, byte[] content, int maxBytes, String message) throws Exception {
+        Files.write(archive.toPath(), content);
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ZipIndex index = ZipIndex.read(channel, archive.length(), archive.lastModified());
+            long received = 0;
+            try (InputStream in = index.openStream(channel, index.getEntry("text.txt"))) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    received += read;
+                }
+                fail(message);
+            } catch (ZipException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains(message));
+            }
+            assertTrue(received + " bytes", received <= maxBytes);
+        }
+    }
+
+    private static int indexOf(byte[] content, byte[] signature) {
+        for (int i = 0; i <= content.length - signature.length; i++) {
+            if (Arrays.equals(signature, Arrays.copyOfRange(content, i, i + signature.length))) {
+                return i;
+            }
+        }
+        throw new AssertionError("Signature not found");
+    }
+
+    private static byte[] read(InputStream in) throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return content.toByteArray();
+    }
+}
@@ -0,0 +1,272 @@
+package com.fabriceci.fmc.util;
+
+import com.fabriceci.SparseFileOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipUtilsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void zipFolderToStreamTest() throws Exception {
+
+        File dir = temporaryFolder.newFolder("folder");
+        Files.write(new File(dir, "a.txt").toPath(), "first file".getBytes(StandardCharsets.UTF_8));
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append("line ").append(i).append('\n');
+        }
+        Files.write(new File(sub, "b.txt").toPath(), large.toString().getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipUtils.zipFolder(dir, out);
+
+        Map<String, String> entries = readEntries(out.toByteArray());
+        assertEquals(2, entries.size());
+        assertEquals("first file", entries.get("folder/a.txt"));
+        assertEquals(large.toString(), entries.get("folder/sub/b.txt"));
+    }
+
+    @Test
+    public void zipLargeFileInChunksTest() throws Exception {
+
+        // a few chunks of mixed compressible and random data
+        File dir = temporaryFolder.newFolder("large");
+        byte[] data = new byte[3 * 1048576 + 12345];
+        Random random = new Random(7);
+        for (int i = 0; i < data.length; i += 4096) {
+            if ((i / 4096) % 3 == 0) {
+                byte[] block = new byte[Math.min(4096, data.length - i)];
+                random.nextBytes(block);
+                System.arraycopy(block, 0, data, i, block.length);
+            } else {
+                Arrays.fill(data, i, Math.min(i + 4096, data.length), (byte) ('a' + (i / 4096) % 26));
+            }
+        }
+        File file = new File(dir, "data.bin");
+        Files.write(file.toPath(), data);
+        Files.write(new File(dir, "empty.txt").toPath(), new byte[0]);
+
+        File archive = temporaryFolder.newFile("large.zip");
+        try (OutputStream out = new FileOutputStream(archive)) {
+            ZipUtils.zipFolder(dir, out);
+        }
+
+        // read through the central directory
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            assertEquals(2, zipFile.size());
+            ZipEntry entry = zipFile.getEntry("large/data.bin");
+            assertEquals(data.length, entry.getSize());
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            assertEquals(crc.getValue(), entry.getCrc());
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    content.write(buffer, 0, read);
+                }
+            }
+            assertArrayEquals(data, content.toByteArray());
+            assertEquals(0, zipFile.getEntry("large/empty.txt").getSize());
+        }
+    }
+
+    @Test
+    public void storeIncompressibleFilesTest() throws Exception {
+
+        File dir = temporaryFolder.newFolder("mixed");
+        byte[] noise = new byte[1048576 + 100000];
+        new Random(3).nextBytes(noise);
+        Files.write(new File(dir, "noise.bin").toPath(), noise);
+        Files.write(new File(dir, "photo.jpg").toPath(), Arrays.copyOf(noise, 1000));
+        byte[] text = new byte[200000];
+        Arrays.fill(text, (byte) 'x');
+        Files.write(new File(dir, "text.txt").toPath(), text);
+
+        File archive = temporaryFolder.newFile("mixed.zip");
+        ArchiveStats stats;
+        try (OutputStream out = new FileOutputStream(archive)) {
+            stats = ZipUtils.zipFolder(dir, out);
+        }
+
+        assertEquals(3, stats.getEntries());
+        assertEquals(2, stats.getStoredEntries());
+        assertEquals(noise.length + 1000 + text.length, stats.getRawBytes());
+        assertEquals(archive.length(), stats.getArchiveBytes());
+        assertTrue(stats.getSavedBytes() > 190000);
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            // by probe, then by type
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("mixed/noise.bin").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("mixed/photo.jpg").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("mixed/text.txt").getMethod());
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("mixed/noise.bin"))) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    content.write(buffer, 0, read);
+                }
+                assertArrayEquals(noise, content.toByteArray());
+            }
+        }
+
+        // stored entries carry their sizes in the local header, for streaming readers
+        Map<String, String> entries = readEntries(Files.readAllBytes(archive.toPath()));
+        assertEquals(3, entries.size());
+        assertEquals(new String(text, StandardCharsets.UTF_8), entries.get("mixed/text.txt"));
+    }
+
+    @Test
+    public void zipFolderLevelZeroTest() throws Exception {
+
+        File dir = temporaryFolder.newFolder("stored");
+        Files.write(new File(dir, "a.txt").toPath(), "first file first file".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArchiveStats stats = ZipUtils.zipFolder(dir, out, 0);
+        assertEquals(1, stats.getStoredEntries());
+        assertEquals("first file first file", readEntries(out.toByteArray()).get("stored/a.txt"));
+    }
+
+    @Test
+    public void zip64ManyEntriesTest() throws Exception {
+
+        // more entries than the 16-bit count of a classic archive
+        File file = temporaryFolder.newFile("small.txt");
+        Files.write(file.toPath(), "small".getBytes(StandardCharsets.UTF_8));
+        Map<String, File> files = new LinkedHashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            files.put("dir" + i / 1000 + "/file" + i + ".txt", file);
+        }
+        File archive = temporaryFolder.newFile("many.zip");
+        try (OutputStream out = new FileOutputStream(archive)) {
+            assertEquals(100000, ZipUtils.writeArchive(files, new ZipStreamWriter(out), out).getEntries());
+        }
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            assertEquals(100000, zipFile.size());
+            assertEquals(5, zipFile.getEntry("dir99/file99999.txt").getSize());
+        }
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ZipIndex index = ZipIndex.read(channel, archive.length(), archive.lastModified());
+            assertEquals(100000 + 100, index.size());
+            assertEquals(1000, index.list("dir42/").size());
+        }
+
+        File target = temporaryFolder.newFolder("many");
+        new ZipExtractor(archive, target).select(Arrays.asList("dir99/file99999.txt")).extract(new ZipExtractor.Filter() {
+            @Override
+            public boolean accept(ZipEntry entry, File target) {
+                return true;
+            }
+        });
+        assertEquals("small", new String(Files.readAllBytes(new File(target, "dir99/file99999.txt").toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void zip64LargeFileTest() throws Exception {
+
+        // a sparse file over 4GB, followed by a small file at an offset over 4GB
+        final long length = 4L * 1024 * 1024 * 1024 + 12345;
+        File large = temporaryFolder.newFile("large.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(large, "rw")) {
+            raf.setLength(length);
+            raf.seek(length - 4);
+            raf.write(new byte[]{'t', 'a', 'i', 'l'});
+        }
+        File small = temporaryFolder.newFile("small.txt");
+        Files.write(small.toPath(), "small".getBytes(StandardCharsets.UTF_8));
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put("large.bin", large);
+        files.put("small.txt", small);
+
+        File archive = temporaryFolder.newFile("large.zip");
+        try (OutputStream out = new SparseFileOutputStream(archive)) {
+            ZipUtils.writeArchive(files, new ZipStreamWriter(out, 0), out);
+        }
+        assertTrue(archive.length() > length);
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            ZipEntry entry = zipFile.getEntry("large.bin");
+            assertEquals(length, entry.getSize());
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                assertEquals(length - 4, in.skip(length - 4));
+                byte[] tail = new byte[4];
+                assertEquals(4, in.read(tail));
+                assertEquals("tail", new String(tail, StandardCharsets.US_ASCII));
+            }
+            try (InputStream in = zipFile.getInputStream(zipFile.getEntry("small.txt"))) {
+                assertEquals("small", new String(read(in), StandardCharsets.UTF_8));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            ZipIndex index = ZipIndex.read(channel, archive.length(), archive.lastModified());
+            assertEquals(length, index.getEntry("large.bin").getSize());
+            assertEquals(length, index.getEntry("large.bin").getCompressedSize());
+            assertEquals("small", new String(read(index.openStream(channel, index.getEntry("small.txt"))), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] read(InputStream in) throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return content.toByteArray();
+    }
+
+    static Map<String, String> readEntries(byte[] zip) throws Exception {
+        Map<String, String> entries = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = in.getNextEntry()) != null) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    content.write(buffer, 0, read);
+                }
+                entries.put(entry.getName(), new String(content.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+}